@@ -15,36 +15,162 @@
  */
 package org.terasology.itempipes.action;
 
-import org.terasology.entitySystem.Component;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.terasology.entitySystem.entity.EntityManager;
 import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.entity.lifecycleEvents.BeforeDeactivateComponent;
 import org.terasology.entitySystem.event.ReceiveEvent;
 import org.terasology.entitySystem.systems.BaseComponentSystem;
 import org.terasology.entitySystem.systems.RegisterMode;
 import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.entitySystem.systems.UpdateSubscriberSystem;
+import org.terasology.itempipes.controllers.PipeSystem;
 import org.terasology.itempipes.event.PipeInsertEvent;
 import org.terasology.logic.inventory.InventoryComponent;
 import org.terasology.logic.inventory.InventoryManager;
 import org.terasology.logic.inventory.ItemComponent;
+import org.terasology.logic.inventory.events.InventorySlotChangedEvent;
+import org.terasology.logic.inventory.events.InventorySlotStackSizeChangedEvent;
 import org.terasology.registry.In;
+import org.terasology.registry.Share;
 
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects the items arriving at each inventory during a tick and delivers them together, merging stacks first.
+ */
 @RegisterSystem(RegisterMode.AUTHORITY)
-public class InventoryInsertAction extends BaseComponentSystem {
+@Share(value = InventoryInsertAction.class)
+public class InventoryInsertAction extends BaseComponentSystem implements UpdateSubscriberSystem {
     @In
     InventoryManager inventoryManager;
 
     @In
     EntityManager entityManager;
 
+    @In
+    PipeSystem pipeSystem;
+
+    private final Map<EntityRef, Set<EntityRef>> arrivals = Maps.newLinkedHashMap();
+    private final Map<EntityRef, InventoryLayout> layouts = Maps.newHashMap();
+    private final Map<String, EntityRef> openStacks = Maps.newHashMap();
+    private final List<EntityRef> batch = Lists.newArrayList();
+    private final List<EntityRef> delivered = Lists.newArrayList();
+    private final List<Integer> slots = Lists.newArrayList();
+    private Set<EntityRef> waiting = Sets.newHashSet();
+    private Set<EntityRef> stillWaiting = Sets.newHashSet();
+    private boolean delivering;
+
     @ReceiveEvent
     public void onInvetoryInsert( PipeInsertEvent event,EntityRef entityRef, InventoryComponent inventoryComponent) {
-       if(inventoryManager.giveItem(entityRef,EntityRef.NULL,event.getActor())){
-           ItemComponent itemComponent = event.getActor().getComponent(ItemComponent.class);
-           if (itemComponent != null) {
-               for (Component component : itemComponent.pickupPrefab.iterateComponents()) {
-                   event.getActor().removeComponent(component.getClass());
-               }
-           }
-       }
+        // a held item offers itself every update, the set keeps it to one delivery attempt per tick
+        arrivals.computeIfAbsent(entityRef, k -> Sets.newLinkedHashSet()).add(event.getActor());
+    }
+
+    @ReceiveEvent
+    public void onSlotChanged(InventorySlotChangedEvent event, EntityRef entityRef, InventoryComponent inventoryComponent) {
+        if (!delivering) {
+            layouts.remove(entityRef);
+        }
+    }
+
+    @ReceiveEvent
+    public void onStackSizeChanged(InventorySlotStackSizeChangedEvent event, EntityRef entityRef, InventoryComponent inventoryComponent) {
+        if (!delivering) {
+            layouts.remove(entityRef);
+        }
+    }
+
+    @ReceiveEvent(components = {InventoryComponent.class})
+    public void onInventoryRemoved(BeforeDeactivateComponent event, EntityRef entityRef) {
+        layouts.remove(entityRef);
+        arrivals.remove(entityRef);
+    }
+
+    @Override
+    public void update(float delta) {
+        if (arrivals.isEmpty() && waiting.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<EntityRef, Set<EntityRef>> entry : arrivals.entrySet()) {
+            if (entry.getKey().hasComponent(InventoryComponent.class)) {
+                deliver(entry.getKey(), entry.getValue());
+            }
+        }
+        arrivals.clear();
+        // items that were not offered again are no longer stuck
+        Set<EntityRef> swap = waiting;
+        waiting = stillWaiting;
+        stillWaiting = swap;
+        stillWaiting.clear();
+    }
+
+    private void deliver(EntityRef inventory, Set<EntityRef> items) {
+        merge(items);
+        InventoryLayout layout = layouts.computeIfAbsent(inventory, InventoryLayout::new);
+        delivering = true;
+        for (EntityRef item : batch) {
+            ItemComponent itemComponent = item.getComponent(ItemComponent.class);
+            // failed items stay queued at the end of their pipe and are offered again next tick
+            if (!layout.hasRoom(itemComponent)) {
+                failed(item);
+                continue;
+            }
+            layout.getSlots(itemComponent, slots);
+            if (inventoryManager.giveItem(inventory, EntityRef.NULL, item, slots)) {
+                delivered.add(item);
+                pipeSystem.getStatistics().delivered();
+            } else {
+                failed(item);
+            }
+            layout.refresh(inventory, slots);
+        }
+        delivering = false;
+        batch.clear();
+
+        pipeSystem.leavePipes(delivered);
+        delivered.clear();
+    }
+
+    /**
+     * Counts a failed delivery once for each time an item gets stuck, not for every tick it waits.
+     */
+    private void failed(EntityRef item) {
+        if (!waiting.contains(item)) {
+            pipeSystem.getStatistics().deliveryFailed();
+        }
+        stillWaiting.add(item);
+    }
+
+    /**
+     * Folds items of the same kind into as few stacks as possible and fills {@link #batch} with what is left.
+     */
+    private void merge(Set<EntityRef> items) {
+        for (EntityRef item : items) {
+            ItemComponent itemComponent = item.getComponent(ItemComponent.class);
+            if (itemComponent == null) {
+                continue;
+            }
+            if (!Strings.isNullOrEmpty(itemComponent.stackId)) {
+                EntityRef head = openStacks.get(itemComponent.stackId);
+                if (head != null) {
+                    ItemComponent headComponent = head.getComponent(ItemComponent.class);
+                    if (headComponent.stackCount + itemComponent.stackCount <= headComponent.maxStackSize) {
+                        headComponent.stackCount += itemComponent.stackCount;
+                        head.saveComponent(headComponent);
+                        item.destroy();
+                        continue;
+                    }
+                }
+                openStacks.put(itemComponent.stackId, item);
+            }
+            batch.add(item);
+        }
+        openStacks.clear();
     }
 }
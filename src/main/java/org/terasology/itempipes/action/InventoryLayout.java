@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.itempipes.action;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.logic.inventory.InventoryComponent;
+import org.terasology.logic.inventory.ItemComponent;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers which slots of an inventory are empty and which hold stacks with room left, so pipe deliveries can
+ * target slots directly instead of scanning the whole inventory for every item.
+ */
+public class InventoryLayout {
+    private final List<Integer> freeSlots = Lists.newArrayList();
+    private final Map<String, List<Integer>> openStacks = Maps.newHashMap();
+
+    public InventoryLayout(EntityRef inventory) {
+        InventoryComponent inventoryComponent = inventory.getComponent(InventoryComponent.class);
+        if (inventoryComponent != null) {
+            for (int slot = 0; slot < inventoryComponent.itemSlots.size(); slot++) {
+                add(slot, inventoryComponent.itemSlots.get(slot));
+            }
+        }
+    }
+
+    public boolean hasRoom(ItemComponent item) {
+        if (!freeSlots.isEmpty()) {
+            return true;
+        }
+        List<Integer> stacks = Strings.isNullOrEmpty(item.stackId) ? null : openStacks.get(item.stackId);
+        return stacks != null && !stacks.isEmpty();
+    }
+
+    /**
+     * Fills the list with the slots an item may go into, partially filled stacks first.
+     */
+    public List<Integer> getSlots(ItemComponent item, List<Integer> result) {
+        result.clear();
+        if (!Strings.isNullOrEmpty(item.stackId)) {
+            List<Integer> stacks = openStacks.get(item.stackId);
+            if (stacks != null) {
+                result.addAll(stacks);
+            }
+        }
+        // a single item entity never holds more than one stack, so one empty slot is always enough
+        if (!freeSlots.isEmpty()) {
+            result.add(freeSlots.get(0));
+        }
+        return result;
+    }
+
+    /**
+     * Re-reads the given slots after items were put into them.
+     */
+    public void refresh(EntityRef inventory, List<Integer> slots) {
+        InventoryComponent inventoryComponent = inventory.getComponent(InventoryComponent.class);
+        if (inventoryComponent == null) {
+            return;
+        }
+        for (Integer slot : slots) {
+            freeSlots.remove(slot);
+            for (List<Integer> stacks : openStacks.values()) {
+                stacks.remove(slot);
+            }
+            add(slot, inventoryComponent.itemSlots.get(slot));
+        }
+    }
+
+    private void add(int slot, EntityRef item) {
+        ItemComponent itemComponent = item.getComponent(ItemComponent.class);
+        if (itemComponent == null) {
+            freeSlots.add(slot);
+        } else if (!Strings.isNullOrEmpty(itemComponent.stackId) && itemComponent.stackCount < itemComponent.maxStackSize) {
+            openStacks.computeIfAbsent(itemComponent.stackId, k -> Lists.newArrayList()).add(slot);
+        }
+    }
+}
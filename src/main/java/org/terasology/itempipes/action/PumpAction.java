@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.itempipes.action;
+
+import com.google.common.collect.Sets;
+import org.terasology.engine.Time;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.entity.lifecycleEvents.BeforeDeactivateComponent;
+import org.terasology.entitySystem.entity.lifecycleEvents.OnActivatedComponent;
+import org.terasology.entitySystem.event.ReceiveEvent;
+import org.terasology.entitySystem.prefab.Prefab;
+import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterMode;
+import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.entitySystem.systems.UpdateSubscriberSystem;
+import org.terasology.itempipes.components.PipeComponent;
+import org.terasology.itempipes.components.PumpComponent;
+import org.terasology.itempipes.controllers.PipeSystem;
+import org.terasology.logic.inventory.InventoryComponent;
+import org.terasology.logic.inventory.InventoryManager;
+import org.terasology.logic.inventory.InventoryUtils;
+import org.terasology.logic.inventory.ItemComponent;
+import org.terasology.math.Side;
+import org.terasology.math.SideBitFlag;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.registry.In;
+import org.terasology.world.BlockEntityRegistry;
+import org.terasology.world.block.BlockComponent;
+
+import java.util.Set;
+
+/**
+ * Moves items from inventories next to a pump straight into the pipes next to it, without dropping them into the world.
+ */
+@RegisterSystem(RegisterMode.AUTHORITY)
+public class PumpAction extends BaseComponentSystem implements UpdateSubscriberSystem {
+    private static final Side[] SIDES = Side.values();
+
+    @In
+    private Time time;
+
+    @In
+    InventoryManager inventoryManager;
+
+    @In
+    BlockEntityRegistry blockEntityRegistry;
+
+    @In
+    PipeSystem pipeSystem;
+
+    private final Set<EntityRef> pumps = Sets.newLinkedHashSet();
+    private final Vector3i neighbor = new Vector3i();
+    private final EntityRef[] pipes = new EntityRef[6];
+    private final Prefab[] paths = new Prefab[PipeSystem.MAX_PATH_COUNT];
+
+    @ReceiveEvent(components = {PumpComponent.class, BlockComponent.class})
+    public void onPumpActivated(OnActivatedComponent event, EntityRef entityRef) {
+        pumps.add(entityRef);
+    }
+
+    @ReceiveEvent(components = {PumpComponent.class, BlockComponent.class})
+    public void onPumpDeactivated(BeforeDeactivateComponent event, EntityRef entityRef) {
+        pumps.remove(entityRef);
+    }
+
+    @Override
+    public void update(float delta) {
+        long now = time.getGameTimeInMs();
+        for (EntityRef pump : pumps) {
+            PumpComponent pumpComponent = pump.getComponent(PumpComponent.class);
+            if (pumpComponent.lastTime + pumpComponent.delay >= now) {
+                continue;
+            }
+            pumpComponent.lastTime = now;
+            pump(pump.getComponent(BlockComponent.class).getPosition(), pumpComponent);
+        }
+    }
+
+    private void pump(Vector3i position, PumpComponent pumpComponent) {
+        byte sides = pipeSystem.findFreePipes(position, pipes);
+        if (sides == 0) {
+            return;
+        }
+        int remaining = pumpComponent.batchSize;
+        for (Side side : SIDES) {
+            neighbor.set(position);
+            neighbor.add(side.getVector3i());
+            EntityRef inventory = blockEntityRegistry.getExistingEntityAt(neighbor);
+            if (!inventory.hasComponent(InventoryComponent.class) || inventory.hasComponent(PipeComponent.class)) {
+                continue;
+            }
+            for (int slot = 0; slot < InventoryUtils.getSlotCount(inventory); slot++) {
+                EntityRef item = InventoryUtils.getItemAt(inventory, slot);
+                ItemComponent itemComponent = item.getComponent(ItemComponent.class);
+                if (itemComponent == null) {
+                    continue;
+                }
+                int count = pumpComponent.wholeStack ? itemComponent.stackCount : Math.min(remaining, itemComponent.stackCount);
+                if (!insert(inventory, item, count, position, sides, pumpComponent.velocity)) {
+                    return;
+                }
+                remaining -= count;
+                sides = pipeSystem.findFreePipes(position, pipes);
+                if (pumpComponent.wholeStack || remaining <= 0 || sides == 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false if the items could not be put into any pipe, they are then left in or given back to the inventory
+     */
+    private boolean insert(EntityRef inventory, EntityRef item, int count, Vector3i position, byte sides, float velocity) {
+        EntityRef extracted = EntityRef.NULL;
+        for (Side side : SIDES) {
+            if ((sides & SideBitFlag.getSide(side)) == 0) {
+                continue;
+            }
+            EntityRef pipe = pipes[side.ordinal()];
+            int pathCount = pipeSystem.findMatchingPathPrefabs(pipe, side.reverse(), paths);
+            if (pathCount == 0) {
+                continue;
+            }
+            if (!extracted.exists()) {
+                // nothing is taken out before there is a path for it
+                extracted = inventoryManager.removeItem(inventory, EntityRef.NULL, item, false, count);
+                if (extracted == null || !extracted.exists()) {
+                    return false;
+                }
+                pipeSystem.prepareForPipe(extracted, position.toVector3f());
+            }
+            for (int i = 0; i < pathCount; i++) {
+                if (pipeSystem.insertIntoPipe(extracted, pipe, side.reverse(), paths[i], velocity)) {
+                    return true;
+                }
+            }
+        }
+        if (extracted.exists()) {
+            pipeSystem.revertPrepareForPipe(extracted);
+            if (!inventoryManager.giveItem(inventory, EntityRef.NULL, extracted)) {
+                // the inventory filled up in the meantime
+                pipeSystem.prepareForPipe(extracted, position.toVector3f());
+                pipeSystem.dropItem(extracted);
+            }
+        }
+        return false;
+    }
+}
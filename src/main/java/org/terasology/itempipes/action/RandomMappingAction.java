@@ -17,23 +17,42 @@ package org.terasology.itempipes.action;
 
 import org.terasology.entitySystem.entity.EntityRef;
 import org.terasology.entitySystem.event.ReceiveEvent;
-import org.terasology.entitySystem.prefab.Prefab;
 import org.terasology.entitySystem.systems.BaseComponentSystem;
 import org.terasology.entitySystem.systems.RegisterMode;
 import org.terasology.entitySystem.systems.RegisterSystem;
 import org.terasology.itempipes.components.PipeRandomMappingComponent;
 import org.terasology.itempipes.event.PipeMappingEvent;
 import org.terasology.math.Side;
+import org.terasology.registry.Share;
+import org.terasology.utilities.random.FastRandom;
+import org.terasology.utilities.random.Random;
 
-import java.util.Optional;
+import java.util.Arrays;
 
 @RegisterSystem(RegisterMode.AUTHORITY)
+@Share(value = RandomMappingAction.class)
 public class RandomMappingAction  extends BaseComponentSystem {
+    private Random random = new FastRandom();
+    private int[] counts = new int[Side.values().length];
+
+    public void setSeed(long seed) {
+        random = new FastRandom(seed);
+    }
+
     @ReceiveEvent(components = {PipeRandomMappingComponent.class})
     public void onSuctionPlaced(PipeMappingEvent event, EntityRef entityRef) {
-        Optional<Side> side =  event.getOutputSides().stream().skip((int) (event.getOutputSides().size() * Math.random())).findFirst();
-        if(side.isPresent()){
-            event.setOutputSide(side.get());
+        int outputs = event.getOutputSides().size();
+        if (outputs == 0) {
+            return;
+        }
+        if (event.getItemCount() > 1 && outputs > 1) {
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < event.getItemCount(); i++) {
+                counts[event.getOutput(random.nextInt(outputs)).ordinal()]++;
+            }
+            event.distribute(counts);
+        } else {
+            event.setOutputSide(event.getOutput(random.nextInt(outputs)));
         }
     }
 }
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2017 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.itempipes.action;
+
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.event.EventPriority;
+import org.terasology.entitySystem.event.ReceiveEvent;
+import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterMode;
+import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.itempipes.components.PipeRoutingComponent;
+import org.terasology.itempipes.controllers.PipeSystem;
+import org.terasology.itempipes.event.PipeMappingEvent;
+import org.terasology.itempipes.network.PipeNode;
+import org.terasology.math.Side;
+import org.terasology.registry.In;
+import org.terasology.world.block.BlockComponent;
+
+@RegisterSystem(RegisterMode.AUTHORITY)
+public class RoutingMappingAction extends BaseComponentSystem {
+    @In
+    PipeSystem pipeSystem;
+
+    @ReceiveEvent(components = {PipeRoutingComponent.class, BlockComponent.class}, priority = EventPriority.PRIORITY_LOW)
+    public void onRoute(PipeMappingEvent event, EntityRef entityRef) {
+        PipeNode node = pipeSystem.getNetwork().getNode(entityRef.getComponent(BlockComponent.class).getPosition());
+        if (node == null) {
+            return;
+        }
+        Side side = pipeSystem.getRouter().getNextHop(node, event.getOutputSides());
+        if (side != null) {
+            event.setOutputSide(side);
+            event.clearSplits();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2017 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.itempipes.action;
+
+import com.google.common.collect.Maps;
+import gnu.trove.iterator.TObjectIntIterator;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.entity.lifecycleEvents.BeforeDeactivateComponent;
+import org.terasology.entitySystem.entity.lifecycleEvents.OnChangedComponent;
+import org.terasology.entitySystem.event.ReceiveEvent;
+import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterMode;
+import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.itempipes.components.PipeLeastOccupiedMappingComponent;
+import org.terasology.itempipes.components.PipeRatioMappingComponent;
+import org.terasology.itempipes.components.PipeRoundRobinMappingComponent;
+import org.terasology.itempipes.controllers.PipeSystem;
+import org.terasology.itempipes.event.PipeMappingEvent;
+import org.terasology.itempipes.network.PipeNode;
+import org.terasology.math.Side;
+import org.terasology.registry.In;
+import org.terasology.world.block.BlockComponent;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Deterministic splitter strategies. None of them allocate per routed item. Their cursors are kept in memory and only
+ * written to the splitter's components when the game is saved or the splitter is unloaded, so routing an item does not
+ * change any component.
+ */
+@RegisterSystem(RegisterMode.AUTHORITY)
+public class SplitterMappingAction extends BaseComponentSystem {
+    private static final Side[] SIDES = Side.values();
+
+    @In
+    PipeSystem pipeSystem;
+
+    private Map<EntityRef, int[]> ratioCredits = Maps.newHashMap();
+    private TObjectIntMap<EntityRef> roundRobinCursors = new TObjectIntHashMap<>();
+    private TObjectIntMap<EntityRef> leastOccupiedCursors = new TObjectIntHashMap<>();
+    private int[] counts = new int[SIDES.length];
+
+    @ReceiveEvent
+    public void onRoundRobin(PipeMappingEvent event, EntityRef entityRef, PipeRoundRobinMappingComponent component) {
+        int outputs = event.getOutputSides().size();
+        if (outputs == 0) {
+            return;
+        }
+        int next = cursor(roundRobinCursors, entityRef, component.next);
+        if (event.getItemCount() > 1) {
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < event.getItemCount(); i++) {
+                next = (next + 1) % outputs;
+                counts[event.getOutput(next).ordinal()]++;
+            }
+            event.distribute(counts);
+        } else {
+            next = (next + 1) % outputs;
+            event.setOutputSide(event.getOutput(next));
+        }
+        roundRobinCursors.put(entityRef, next);
+    }
+
+    @ReceiveEvent
+    public void onRatio(PipeMappingEvent event, EntityRef entityRef, PipeRatioMappingComponent component) {
+        int[] credits = ratioCredits.computeIfAbsent(entityRef, k -> new int[SIDES.length]);
+        if (event.getItemCount() > 1) {
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < event.getItemCount(); i++) {
+                Side side = nextByRatio(event, component, credits);
+                if (side == null) {
+                    return;
+                }
+                counts[side.ordinal()]++;
+            }
+            event.distribute(counts);
+        } else {
+            Side side = nextByRatio(event, component, credits);
+            if (side != null) {
+                event.setOutputSide(side);
+            }
+        }
+    }
+
+    @ReceiveEvent(components = {BlockComponent.class})
+    public void onLeastOccupied(PipeMappingEvent event, EntityRef entityRef, PipeLeastOccupiedMappingComponent component) {
+        int outputs = event.getOutputSides().size();
+        PipeNode node = pipeSystem.getNetwork().getNode(entityRef.getComponent(BlockComponent.class).getPosition());
+        if (outputs == 0 || node == null) {
+            return;
+        }
+        // start at a rotating output so ties are spread evenly
+        int next = (cursor(leastOccupiedCursors, entityRef, component.next) + 1) % outputs;
+        leastOccupiedCursors.put(entityRef, next);
+        Side best = null;
+        int bestCount = Integer.MAX_VALUE;
+        for (int i = 0; i < outputs; i++) {
+            Side side = event.getOutput((next + i) % outputs);
+            PipeNode neighbor = node.getNeighbor(side);
+            int count = neighbor == null ? 0 : neighbor.getItemCount();
+            if (count < bestCount) {
+                best = side;
+                bestCount = count;
+            }
+        }
+        event.setOutputSide(best);
+        event.clearSplits();
+    }
+
+    @ReceiveEvent
+    public void onRoundRobinDeactivated(BeforeDeactivateComponent event, EntityRef entityRef, PipeRoundRobinMappingComponent component) {
+        if (roundRobinCursors.containsKey(entityRef)) {
+            component.next = roundRobinCursors.remove(entityRef);
+        }
+    }
+
+    @ReceiveEvent
+    public void onLeastOccupiedDeactivated(BeforeDeactivateComponent event, EntityRef entityRef, PipeLeastOccupiedMappingComponent component) {
+        if (leastOccupiedCursors.containsKey(entityRef)) {
+            component.next = leastOccupiedCursors.remove(entityRef);
+        }
+    }
+
+    @ReceiveEvent(components = {PipeRatioMappingComponent.class})
+    public void onRatioChanged(OnChangedComponent event, EntityRef entityRef) {
+        ratioCredits.remove(entityRef);
+    }
+
+    @ReceiveEvent(components = {PipeRatioMappingComponent.class})
+    public void onRatioDeactivated(BeforeDeactivateComponent event, EntityRef entityRef) {
+        ratioCredits.remove(entityRef);
+    }
+
+    @Override
+    public void preSave() {
+        storeCursors();
+    }
+
+    @Override
+    public void preAutoSave() {
+        storeCursors();
+    }
+
+    private void storeCursors() {
+        for (TObjectIntIterator<EntityRef> it = roundRobinCursors.iterator(); it.hasNext(); ) {
+            it.advance();
+            PipeRoundRobinMappingComponent component = it.key().getComponent(PipeRoundRobinMappingComponent.class);
+            if (component != null && component.next != it.value()) {
+                component.next = it.value();
+                it.key().saveComponent(component);
+            }
+        }
+        for (TObjectIntIterator<EntityRef> it = leastOccupiedCursors.iterator(); it.hasNext(); ) {
+            it.advance();
+            PipeLeastOccupiedMappingComponent component = it.key().getComponent(PipeLeastOccupiedMappingComponent.class);
+            if (component != null && component.next != it.value()) {
+                component.next = it.value();
+                it.key().saveComponent(component);
+            }
+        }
+    }
+
+    /**
+     * @return the cursor kept in memory for the splitter, or the one stored in its component if there is none yet
+     */
+    private static int cursor(TObjectIntMap<EntityRef> cursors, EntityRef entityRef, int stored) {
+        return cursors.containsKey(entityRef) ? cursors.get(entityRef) : stored;
+    }
+
+    /**
+     * Smooth weighted round robin: every output earns its weight in credits, the richest one is picked and pays the total.
+     */
+    private Side nextByRatio(PipeMappingEvent event, PipeRatioMappingComponent component, int[] credits) {
+        Side best = null;
+        int total = 0;
+        for (Side side : SIDES) {
+            if (!event.hasOutput(side)) {
+                continue;
+            }
+            Integer weight = component.weights.get(side.name());
+            int value = weight == null ? 1 : weight;
+            if (value <= 0) {
+                continue;
+            }
+            credits[side.ordinal()] += value;
+            total += value;
+            if (best == null || credits[side.ordinal()] > credits[best.ordinal()]) {
+                best = side;
+            }
+        }
+        if (best != null) {
+            credits[best.ordinal()] -= total;
+        }
+        return best;
+    }
+}
@@ -21,33 +21,30 @@ import org.slf4j.LoggerFactory;
 import org.terasology.engine.Time;
 import org.terasology.entitySystem.entity.EntityManager;
 import org.terasology.entitySystem.entity.EntityRef;
-import org.terasology.entitySystem.event.EventPriority;
+import org.terasology.entitySystem.entity.lifecycleEvents.BeforeDeactivateComponent;
+import org.terasology.entitySystem.entity.lifecycleEvents.OnActivatedComponent;
 import org.terasology.entitySystem.event.ReceiveEvent;
 import org.terasology.entitySystem.prefab.Prefab;
 import org.terasology.entitySystem.systems.BaseComponentSystem;
 import org.terasology.entitySystem.systems.RegisterMode;
 import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.entitySystem.systems.UpdateSubscriberSystem;
+import org.terasology.logic.inventory.ItemComponent;
+import org.terasology.logic.inventory.PickupComponent;
 import org.terasology.logic.location.LocationComponent;
 import org.terasology.math.Side;
-import org.terasology.physics.CollisionGroup;
-import org.terasology.physics.StandardCollisionGroup;
-import org.terasology.physics.components.TriggerComponent;
-import org.terasology.physics.events.CollideEvent;
+import org.terasology.math.SideBitFlag;
+import org.terasology.math.geom.Vector3f;
 import org.terasology.physics.events.ImpulseEvent;
-import org.terasology.physics.shapes.SphereShapeComponent;
 import org.terasology.registry.In;
-import org.terasology.itempipes.components.SuctionCollisionManifold;
 import org.terasology.itempipes.components.SuctionComponent;
 import org.terasology.itempipes.controllers.PipeSystem;
 import org.terasology.world.block.BlockComponent;
-import org.terasology.world.block.items.OnBlockItemPlaced;
 
-import java.util.Map;
-import java.util.Optional;
-import java.util.Set;
+import java.util.List;
 
 @RegisterSystem(RegisterMode.AUTHORITY)
-public class SuctionAction  extends BaseComponentSystem {
+public class SuctionAction  extends BaseComponentSystem implements UpdateSubscriberSystem {
 
     private static final Logger logger = LoggerFactory.getLogger(SuctionAction.class);
 
@@ -60,66 +57,144 @@ public class SuctionAction  extends BaseComponentSystem {
     @In
     PipeSystem teraPipeSystem;
 
-    @ReceiveEvent
-    public void onSuctionPlaced(OnBlockItemPlaced event, EntityRef entityRef) {
-        EntityRef blockEntity = event.getPlacedBlock();
-        SuctionComponent suctionComponent = blockEntity.getComponent(SuctionComponent.class);
-        if (suctionComponent == null || suctionComponent.collisionManifold != null)
-            return;
-
-        BlockComponent blockComponent = blockEntity.getComponent(BlockComponent.class);
-
-
-        EntityRef ref = entityManager.create();
-        ref.setOwner(blockEntity);
-
-        SphereShapeComponent sphereShapeComponent = new SphereShapeComponent();
-        sphereShapeComponent.radius = suctionComponent.range;
-
-        TriggerComponent triggerComponent = new TriggerComponent();
-        triggerComponent.detectGroups = Lists.<CollisionGroup>newArrayList(StandardCollisionGroup.DEBRIS);
-
-        LocationComponent locationComponent = new LocationComponent();
-        locationComponent.setWorldPosition(blockComponent.getPosition().toVector3f());
-
-        ref.addComponent(triggerComponent);
-        ref.addComponent(sphereShapeComponent);
-        ref.addComponent(locationComponent);
+    private static final float CAPTURE_RADIUS = 1f;
+    /**
+     * Items used to be pulled on every physics collision step, impulses are scaled to give the same pull over time.
+     */
+    private static final float COLLISION_STEP = 1f / 60f;
+    private static final Side[] SIDES = Side.values();
+
+    private SuctionGrid suctionGrid = new SuctionGrid();
+    private List<EntityRef> candidates = Lists.newArrayList();
+    private EntityRef[] pipes = new EntityRef[6];
+    private Prefab[] paths = new Prefab[PipeSystem.MAX_PATH_COUNT];
+    private float scanInterval = .1f;
+    private float scanTimer;
+    private float impulseInterval = .2f;
+    private float impulseTimer;
+    private float pullStrength = 2f;
+
+    private Vector3f pull = new Vector3f();
+    private Vector3f direction = new Vector3f();
+
+    /**
+     * Interval in seconds between two scans for loose items around suction blocks.
+     */
+    public void setScanInterval(float scanInterval) {
+        this.scanInterval = scanInterval;
+    }
 
-        ref.addComponent(new SuctionCollisionManifold());
+    /**
+     * Minimum interval in seconds between two pull impulses on the same item.
+     */
+    public void setImpulseInterval(float impulseInterval) {
+        this.impulseInterval = impulseInterval;
+    }
 
-        suctionComponent.collisionManifold = ref;
+    /**
+     * Strength of the impulse each suction block in range contributes to the combined pull per physics step. Impulses
+     * are sent less often and scaled up by the number of steps since the last one.
+     */
+    public void setPullStrength(float pullStrength) {
+        this.pullStrength = pullStrength;
+    }
 
+    @ReceiveEvent(components = {SuctionComponent.class, BlockComponent.class})
+    public void onSuctionActivated(OnActivatedComponent event, EntityRef entityRef) {
+        SuctionComponent suctionComponent = entityRef.getComponent(SuctionComponent.class);
+        if (suctionComponent.collisionManifold != null) {
+            // trigger entities from before the suction grid are no longer needed
+            suctionComponent.collisionManifold.destroy();
+            suctionComponent.collisionManifold = null;
+            entityRef.saveComponent(suctionComponent);
+        }
+        BlockComponent blockComponent = entityRef.getComponent(BlockComponent.class);
+        suctionGrid.add(entityRef, blockComponent.getPosition(), suctionComponent.range);
     }
 
-    @ReceiveEvent(components = {SuctionCollisionManifold.class}, priority = EventPriority.PRIORITY_HIGH)
-    public void onBump(CollideEvent event, EntityRef entity) {
+    @ReceiveEvent(components = {SuctionComponent.class, BlockComponent.class})
+    public void onSuctionDeactivated(BeforeDeactivateComponent event, EntityRef entityRef) {
+        suctionGrid.remove(entityRef);
+    }
 
-        EntityRef owner = entity.getOwner();
-        if (!owner.exists()) {
-            owner.destroy();
+    @Override
+    public void update(float delta) {
+        if (suctionGrid.isEmpty()) {
             return;
         }
+        impulseTimer += delta;
+        scanTimer += delta;
+        if (scanTimer < scanInterval) {
+            return;
+        }
+        scanTimer = 0;
+        boolean sendImpulses = impulseTimer >= impulseInterval;
+        float impulseScale = impulseTimer / COLLISION_STEP;
+        if (sendImpulses) {
+            impulseTimer = 0;
+        }
 
-        BlockComponent blockComponent = owner.getComponent(BlockComponent.class);
-        SuctionComponent suctionComponent = owner.getComponent(SuctionComponent.class);
-
-        LocationComponent locationComponent = event.getOtherEntity().getComponent(LocationComponent.class);
-
-        if (blockComponent.getPosition().toVector3f().distance(locationComponent.getWorldPosition()) <= 1f) {
-            if (suctionComponent.lastTime + suctionComponent.delay < time.getGameTimeInMs()) {
-                suctionComponent.lastTime = time.getGameTimeInMs();
-                Map<Side, EntityRef> pipes = teraPipeSystem.findPipes(blockComponent.getPosition());
-                Optional<Side> side = pipes.keySet().stream().skip((int) (pipes.keySet().size() * Math.random())).findFirst();
-                if (side.isPresent()) {
-                    EntityRef entityRef = pipes.get(side.get());
-                    Set<Prefab> prefabs = teraPipeSystem.findingMatchingPathPrefab(entityRef, side.get().reverse());
-                    Optional<Prefab> pick = prefabs.stream().skip((int) (prefabs.size() * Math.random())).findFirst();
-                    teraPipeSystem.insertIntoPipe(event.getOtherEntity(), entityRef, side.get().reverse(), pick.get(), 1f);
+        for (EntityRef item : entityManager.getEntitiesWith(PickupComponent.class, ItemComponent.class, LocationComponent.class)) {
+            Vector3f itemPosition = item.getComponent(LocationComponent.class).getWorldPosition();
+            candidates.clear();
+            suctionGrid.query(itemPosition, candidates);
+
+            pull.set(0, 0, 0);
+            boolean capturing = false;
+            boolean inserted = false;
+            for (EntityRef suction : candidates) {
+                BlockComponent blockComponent = suction.getComponent(BlockComponent.class);
+                SuctionComponent suctionComponent = suction.getComponent(SuctionComponent.class);
+                if (blockComponent == null || suctionComponent == null) {
+                    continue;
+                }
+                // pipes that are backed up stop pulling items in
+                if (!teraPipeSystem.hasFreePipe(blockComponent.getPosition())) {
+                    continue;
+                }
+                direction.set(blockComponent.getPosition().toVector3f());
+                direction.sub(itemPosition);
+                float distance = direction.length();
+                if (distance > suctionComponent.range) {
+                    continue;
+                }
+                if (distance <= CAPTURE_RADIUS) {
+                    capturing = true;
+                    if (capture(suction, blockComponent, suctionComponent, item)) {
+                        inserted = true;
+                        break;
+                    }
+                } else if (sendImpulses) {
+                    direction.scale(pullStrength * impulseScale / distance);
+                    pull.add(direction);
                 }
             }
+            if (!inserted && !capturing && pull.lengthSquared() > 0) {
+                item.send(new ImpulseEvent(new Vector3f(pull)));
+            }
+        }
+        candidates.clear();
+    }
+
+    /**
+     * @return true if the item was inserted into a pipe
+     */
+    private boolean capture(EntityRef suction, BlockComponent blockComponent, SuctionComponent suctionComponent, EntityRef item) {
+        if (suctionComponent.lastTime + suctionComponent.delay >= time.getGameTimeInMs()) {
+            return false;
+        }
+        suctionComponent.lastTime = time.getGameTimeInMs();
+        byte sides = teraPipeSystem.findFreePipes(blockComponent.getPosition(), pipes);
+        int pick = (int) (Integer.bitCount(sides) * Math.random());
+        for (Side side : SIDES) {
+            if ((sides & SideBitFlag.getSide(side)) == 0 || pick-- > 0) {
+                continue;
+            }
+            EntityRef pipe = pipes[side.ordinal()];
+            int count = teraPipeSystem.findMatchingPathPrefabs(pipe, side.reverse(), paths);
+            return count > 0 && teraPipeSystem.insertIntoPipe(item, pipe, side.reverse(), paths[(int) (count * Math.random())], 1f);
         }
-        event.getOtherEntity().send(new ImpulseEvent(blockComponent.getPosition().toVector3f().sub(locationComponent.getWorldPosition()).normalize().mul(2)));
+        return false;
     }
 
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.itempipes.action;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.math.geom.Vector3f;
+import org.terasology.math.geom.Vector3i;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Buckets suction blocks into a coarse grid so loose items only have to be tested against nearby suction blocks.
+ */
+public class SuctionGrid {
+    private static final int CELL_SIZE = 8;
+
+    private final Map<Vector3i, List<EntityRef>> cells = Maps.newHashMap();
+    private final Map<EntityRef, Vector3i> cellsBySuction = Maps.newHashMap();
+    private final Vector3i scratch = new Vector3i();
+    private float maxRange;
+
+    public void add(EntityRef suction, Vector3i position, float range) {
+        remove(suction);
+        Vector3i cell = new Vector3i(cellOf(position.x), cellOf(position.y), cellOf(position.z));
+        cells.computeIfAbsent(cell, k -> Lists.newArrayList()).add(suction);
+        cellsBySuction.put(suction, cell);
+        maxRange = Math.max(maxRange, range);
+    }
+
+    public void remove(EntityRef suction) {
+        Vector3i cell = cellsBySuction.remove(suction);
+        if (cell != null) {
+            List<EntityRef> bucket = cells.get(cell);
+            bucket.remove(suction);
+            if (bucket.isEmpty()) {
+                cells.remove(cell);
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return cellsBySuction.isEmpty();
+    }
+
+    public int size() {
+        return cellsBySuction.size();
+    }
+
+    /**
+     * Adds every suction block whose cell lies within the largest registered range of the position to the result.
+     */
+    public void query(Vector3f position, List<EntityRef> result) {
+        int minX = cellOf((int) Math.floor(position.x - maxRange));
+        int minY = cellOf((int) Math.floor(position.y - maxRange));
+        int minZ = cellOf((int) Math.floor(position.z - maxRange));
+        int maxX = cellOf((int) Math.ceil(position.x + maxRange));
+        int maxY = cellOf((int) Math.ceil(position.y + maxRange));
+        int maxZ = cellOf((int) Math.ceil(position.z + maxRange));
+        for (int x = minX; x <= maxX; x++) {
+            for (int y = minY; y <= maxY; y++) {
+                for (int z = minZ; z <= maxZ; z++) {
+                    scratch.set(x, y, z);
+                    List<EntityRef> bucket = cells.get(scratch);
+                    if (bucket != null) {
+                        result.addAll(bucket);
+                    }
+                }
+            }
+        }
+    }
+
+    private static int cellOf(int value) {
+        return Math.floorDiv(value, CELL_SIZE);
+    }
+}
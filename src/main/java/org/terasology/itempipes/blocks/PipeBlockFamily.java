@@ -15,8 +15,10 @@
  */
 package org.terasology.itempipes.blocks;
 
+import com.google.common.collect.Maps;
 import gnu.trove.map.TByteObjectMap;
 import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.prefab.Prefab;
 import org.terasology.math.Rotation;
 import org.terasology.math.Side;
 import org.terasology.math.SideBitFlag;
@@ -32,49 +34,131 @@ import org.terasology.world.block.family.UpdatesWithNeighboursFamily;
 
 import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
 public class PipeBlockFamily extends UpdatesWithNeighboursFamily  implements PathFamily{
 
     private byte connectionSides;
     private TByteObjectMap<Block> blocks;
     private TByteObjectMap<Rotation> rotation;
+    private PipeShape[] shapes = new PipeShape[64];
+    private Map<Block, Byte> connectionsByBlock = Maps.newIdentityHashMap();
 
     public PipeBlockFamily(BlockUri blockUri, List<String> categories, Block archetypeBlock, TByteObjectMap<Block> blocks, byte connectionSides, TByteObjectMap<Rotation> rotation) {
         super(null, blockUri, categories, archetypeBlock, blocks, connectionSides);
         this.connectionSides = connectionSides;
         this.blocks = blocks;
         this.rotation = rotation;
+        for (byte connections = 0; connections < 64; connections++) {
+            Block block = blocks.get(connections);
+            if (block != null) {
+                connectionsByBlock.put(block, connections);
+            }
+        }
     }
 
-    @Override
-    public Block getBlockForPlacement(WorldProvider worldProvider, BlockEntityRegistry blockEntityRegistry, Vector3i location, Side attachmentSide, Side direction) {
-        byte connections = 0;
-        for (Side connectSide : SideBitFlag.getSides(connectionSides)) {
-            if (connectionCondition(location, connectSide,worldProvider,blockEntityRegistry)) {
-                connections += SideBitFlag.getSide(connectSide);
+    public PipeShape getShape(Block block) {
+        Byte connections = connectionsByBlock.get(block);
+        return connections == null ? null : getShape(connections.byteValue());
+    }
+
+    /**
+     * Shapes are built the first time a block with the connections is actually used.
+     */
+    public PipeShape getShape(byte connections) {
+        if ((connections & 63) != connections) {
+            return null;
+        }
+        PipeShape shape = shapes[connections];
+        if (shape == null) {
+            Block block = blocks.get(connections);
+            if (block == null) {
+                return null;
             }
+            shape = new PipeShape(connections, block, rotation.get(connections));
+            shapes[connections] = shape;
+        }
+        return shape;
+    }
+
+    /**
+     * @param connections the connection byte of the block being entered
+     * @param entrySide the side of that block the item enters through
+     */
+    public PipeTransition getTransition(byte connections, Side entrySide) {
+        PipeShape shape = getShape(connections);
+        if (shape == null) {
+            return PipeTransition.EMPTY;
         }
-        return blocks.get(connections);
+        return shape.getTransition(entrySide);
+    }
+
+    /**
+     * @return the block of this family with exactly the given connections
+     */
+    public Block getBlock(byte connections) {
+        return blocks.get((byte) (connections & connectionSides));
+    }
+
+    @Override
+    public Block getBlockForPlacement(WorldProvider worldProvider, BlockEntityRegistry blockEntityRegistry, Vector3i location, Side attachmentSide, Side direction) {
+        return getBlock(getConnections(location, worldProvider, blockEntityRegistry));
     }
 
     @Override
     public Block getBlockForNeighborUpdate(WorldProvider worldProvider, BlockEntityRegistry blockEntityRegistry, Vector3i location, Block oldBlock) {
+        return getBlock(getConnections(location, worldProvider, blockEntityRegistry));
+    }
+
+    /**
+     * Scans the six neighbours of a location once and returns the sides that have something a pipe connects to.
+     */
+    public byte getConnections(Vector3i location, WorldProvider worldProvider, BlockEntityRegistry blockEntityRegistry) {
+        Vector3i neighborLocation = new Vector3i();
         byte connections = 0;
-        for (Side connectSide : SideBitFlag.getSides(connectionSides)) {
-            if (connectionCondition(location, connectSide,worldProvider,blockEntityRegistry)) {
-                connections += SideBitFlag.getSide(connectSide);
+        for (Side connectSide : Side.values()) {
+            neighborLocation.set(location);
+            neighborLocation.add(connectSide.getVector3i());
+            if (isConnectable(neighborLocation, worldProvider, blockEntityRegistry)) {
+                connections |= SideBitFlag.getSide(connectSide);
             }
         }
-        return blocks.get(connections);
+        return (byte) (connections & connectionSides);
     }
 
-
     public boolean connectionCondition(Vector3i blockLocation, Side connectSide,WorldProvider worldProvider,BlockEntityRegistry blockEntityRegistry) {
         Vector3i neighborLocation = new Vector3i(blockLocation);
         neighborLocation.add(connectSide.getVector3i());
+        return isConnectable(neighborLocation, worldProvider, blockEntityRegistry);
+    }
 
-        EntityRef neighborEntity = blockEntityRegistry.getBlockEntityAt(neighborLocation);
-        return neighborEntity != null && (neighborEntity.hasComponent(PipeComponent.class) || neighborEntity.hasComponent(PipeConnectionComponent.class));
+    /**
+     * @return true if a pipe next to the location would connect to it; pipes and blocks whose prefab declares a
+     * connection are recognized without looking up their entity
+     */
+    public static boolean isConnectable(Vector3i location, WorldProvider worldProvider, BlockEntityRegistry blockEntityRegistry) {
+        if (!worldProvider.isBlockRelevant(location)) {
+            return false;
+        }
+        Block block = worldProvider.getBlock(location);
+        if (block.getBlockFamily() instanceof PipeBlockFamily) {
+            return true;
+        }
+        Optional<Prefab> prefab = block.getPrefab();
+        if (prefab.isPresent() && (prefab.get().hasComponent(PipeComponent.class) || prefab.get().hasComponent(PipeConnectionComponent.class))) {
+            return true;
+        }
+        EntityRef neighborEntity = blockEntityRegistry.getExistingBlockEntityAt(location);
+        return neighborEntity.exists() && (neighborEntity.hasComponent(PipeComponent.class) || neighborEntity.hasComponent(PipeConnectionComponent.class));
+    }
+
+    public EnumSet<Side> getSides(Block block) {
+        Byte connections = connectionsByBlock.get(block);
+        if (connections == null) {
+            return null;
+        }
+        return SideBitFlag.getSides(connections);
     }
 
     public EnumSet<Side> getSides(BlockUri blockUri)
@@ -90,7 +174,15 @@ public class PipeBlockFamily extends UpdatesWithNeighboursFamily  implements Pat
         return null;
     }
 
+    public Rotation getRotationFor(Block block) {
+        Byte connections = connectionsByBlock.get(block);
+        if (connections == null) {
+            return null;
+        }
+        return rotation.get(connections);
+    }
 
+    @Override
     public Rotation getRotationFor(BlockUri blockUri) {
         if (getURI().equals(blockUri.getFamilyUri())) {
             try {
@@ -17,8 +17,9 @@ package org.terasology.itempipes.blocks;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
-import gnu.trove.iterator.TByteObjectIterator;
+import gnu.trove.TCollections;
 import gnu.trove.map.TByteObjectMap;
 import gnu.trove.map.hash.TByteObjectHashMap;
 import org.terasology.entitySystem.entity.EntityRef;
@@ -38,19 +39,15 @@ import org.terasology.world.block.Block;
 import org.terasology.world.block.BlockBuilderHelper;
 import org.terasology.world.block.BlockComponent;
 import org.terasology.world.block.BlockUri;
-import org.terasology.world.block.family.BlockFamily;
 import org.terasology.world.block.family.BlockFamilyFactory;
 import org.terasology.world.block.family.RegisterBlockFamilyFactory;
-import org.terasology.world.block.family.UpdatesWithNeighboursFamily;
 import org.terasology.world.block.family.UpdatesWithNeighboursFamilyFactory;
 import org.terasology.world.block.items.BlockItemComponent;
 import org.terasology.world.block.items.OnBlockItemPlaced;
 import org.terasology.world.block.loader.BlockFamilyDefinition;
 
-import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 @RegisterBlockFamilyFactory("pipe")
 @RegisterSystem(RegisterMode.AUTHORITY)
@@ -62,7 +59,7 @@ public class PipeBlockFamilyFactory extends BaseComponentSystem implements Block
     @In
     private BlockEntityRegistry blockEntityRegistry;
 
-    private TByteObjectMap<Rotation> rotations = new TByteObjectHashMap<>();
+    private Set<Vector3i> dirty = Sets.newLinkedHashSet();
 
     private static final ImmutableSet<String> BLOCK_NAMES = ImmutableSet.of(
             UpdatesWithNeighboursFamilyFactory.NO_CONNECTIONS,
@@ -93,88 +90,55 @@ public class PipeBlockFamilyFactory extends BaseComponentSystem implements Block
             .put(UpdatesWithNeighboursFamilyFactory.SIX_CONNECTIONS, (byte) 63)
             .build();
 
+    /**
+     * Section and rotation for every connection byte, shared by all pipe families. For each byte the first rotation in
+     * {@link Rotation#values()} order that turns a basic section into it is used.
+     */
+    private static final String[] SECTIONS = new String[64];
+    private static final Rotation[] ROTATIONS = new Rotation[64];
+    private static final TByteObjectMap<Rotation> ROTATION_MAP;
+
+    static {
+        TByteObjectMap<Rotation> rotationMap = new TByteObjectHashMap<>();
+        for (Map.Entry<String, Byte> entry : DEFAULT_SHAPE_MAPPING.entrySet()) {
+            for (Rotation rotation : Rotation.values()) {
+                byte connections = rotate(entry.getValue(), rotation);
+                if (SECTIONS[connections] == null) {
+                    SECTIONS[connections] = entry.getKey();
+                    ROTATIONS[connections] = rotation;
+                    rotationMap.put(connections, rotation);
+                }
+            }
+        }
+        ROTATION_MAP = TCollections.unmodifiableMap(rotationMap);
+    }
+
 
 
     @Override
     public PipeBlockFamily createBlockFamily(BlockFamilyDefinition definition, BlockBuilderHelper blockBuilder) {
-        TByteObjectMap<String>[] basicBlocks = new TByteObjectMap[7];
         TByteObjectMap<Block> blocksForConnections = new TByteObjectHashMap<>();
-
-        addConnections(basicBlocks, 0,  UpdatesWithNeighboursFamilyFactory.NO_CONNECTIONS);
-        addConnections(basicBlocks, 1,  UpdatesWithNeighboursFamilyFactory.ONE_CONNECTION);
-        addConnections(basicBlocks, 2,  UpdatesWithNeighboursFamilyFactory.TWO_CONNECTIONS_LINE);
-        addConnections(basicBlocks, 2,  UpdatesWithNeighboursFamilyFactory.TWO_CONNECTIONS_CORNER);
-        addConnections(basicBlocks, 3,  UpdatesWithNeighboursFamilyFactory.THREE_CONNECTIONS_CORNER);
-        addConnections(basicBlocks, 3,  UpdatesWithNeighboursFamilyFactory.THREE_CONNECTIONS_T);
-        addConnections(basicBlocks, 4,  UpdatesWithNeighboursFamilyFactory.FOUR_CONNECTIONS_CROSS);
-        addConnections(basicBlocks, 4,  UpdatesWithNeighboursFamilyFactory.FOUR_CONNECTIONS_SIDE);
-        addConnections(basicBlocks, 5,  UpdatesWithNeighboursFamilyFactory.FIVE_CONNECTIONS);
-        addConnections(basicBlocks, 6,  UpdatesWithNeighboursFamilyFactory.SIX_CONNECTIONS);
-
         BlockUri blockUri = new BlockUri(definition.getUrn());
 
-        // Now make sure we have all combinations based on the basic set (above) and rotations
         for (byte connections = 0; connections < 64; connections++) {
-            // Only the allowed connections should be created
-            if ((connections & (byte)63) == connections) {
-                Block block = constructBlockForConnections(connections, blockBuilder, definition, basicBlocks);
-                if (block == null) {
-                    throw new IllegalStateException("Unable to find correct block definition for connections: " + connections);
-                }
-                block.setKeepActive(true);
-                block.setUri(new BlockUri(blockUri, new Name(String.valueOf(connections))));
-                blocksForConnections.put(connections, block);
-            }
+            Block block = blockBuilder.constructTransformedBlock(definition, SECTIONS[connections], ROTATIONS[connections]);
+            block.setKeepActive(true);
+            block.setUri(new BlockUri(blockUri, new Name(String.valueOf(connections))));
+            blocksForConnections.put(connections, block);
         }
 
         final Block archetypeBlock = blocksForConnections.get(SideBitFlag.getSides(Side.RIGHT, Side.LEFT));
 //        return new SignalUpdateFamily(blockUri, definition.getCategories(), archetypeBlock, blocksForConnections, (byte)63);
         return new PipeBlockFamily(blockUri, definition.getCategories(),
-                archetypeBlock, blocksForConnections, (byte)63,rotations);
-    }
-
-    private void addConnections(TByteObjectMap<String>[] basicBlocks, int index, String connections) {
-        if (basicBlocks[index] == null) {
-            basicBlocks[index] = new TByteObjectHashMap<>();
-        }
-        Byte val = DEFAULT_SHAPE_MAPPING.get(connections);
-        if (val != null) {
-            basicBlocks[index].put(DEFAULT_SHAPE_MAPPING.get(connections), connections);
-        }
-    }
-
-    private Block constructBlockForConnections(final byte connections, final BlockBuilderHelper blockBuilder,
-                                               BlockFamilyDefinition definition, TByteObjectMap<String>[] basicBlocks) {
-        int connectionCount = SideBitFlag.getSides(connections).size();
-        TByteObjectMap<String> possibleBlockDefinitions = basicBlocks[connectionCount];
-        final TByteObjectIterator<String> blockDefinitionIterator = possibleBlockDefinitions.iterator();
-        while (blockDefinitionIterator.hasNext()) {
-            blockDefinitionIterator.advance();
-            final byte originalConnections = blockDefinitionIterator.key();
-            final String section = blockDefinitionIterator.value();
-            Rotation rot = getRotationToAchieve(originalConnections, connections);
-            if (rot != null) {
-                rotations.put(connections,rot);
-                return blockBuilder.constructTransformedBlock(definition, section, rot);
-            }
-        }
-        return null;
+                archetypeBlock, blocksForConnections, (byte)63, ROTATION_MAP);
     }
 
-    private Rotation getRotationToAchieve(byte source, byte target) {
-        Collection<Side> originalSides = SideBitFlag.getSides(source);
-
-        Iterable<Rotation> rotations = /*horizontalOnly ? Rotation.horizontalRotations() :*/ Rotation.values();
-        for (Rotation rot : rotations) {
-            Set<Side> transformedSides = Sets.newHashSet();
-            transformedSides.addAll(originalSides.stream().map(rot::rotate).collect(Collectors.toList()));
-
-            byte transformedSide = SideBitFlag.getSides(transformedSides);
-            if (transformedSide == target) {
-                return rot;
-            }
+    private static byte rotate(byte connections, Rotation rotation) {
+        byte result = 0;
+        for (Side side : SideBitFlag.getSides(connections)) {
+            result |= SideBitFlag.getSide(rotation.rotate(side));
         }
-        return null;
+        return result;
     }
 
     @ReceiveEvent(components = {BlockItemComponent.class})
@@ -185,28 +149,59 @@ public class PipeBlockFamilyFactory extends BaseComponentSystem implements Block
         }
 
         Vector3i targetBlock = blockComponent.getPosition();
-        processUpdateForBlockLocation(targetBlock);
+        markDirty(targetBlock);
     }
 
-    private void processUpdateForBlockLocation(Vector3i blockLocation) {
+    /**
+     * Reconnects the pipes next to a changed location.
+     */
+    private void markDirty(Vector3i blockLocation) {
         for (Side side : Side.values()) {
             Vector3i neighborLocation = new Vector3i(blockLocation);
             neighborLocation.add(side.getVector3i());
-            if (worldProvider.isBlockRelevant(neighborLocation)) {
-                Block neighborBlock = worldProvider.getBlock(neighborLocation);
-                final BlockFamily blockFamily = neighborBlock.getBlockFamily();
-                if (blockFamily instanceof PipeBlockFamily) {
-                    UpdatesWithNeighboursFamily neighboursFamily = (PipeBlockFamily) blockFamily;
-                    Block neighborBlockAfterUpdate = neighboursFamily.getBlockForNeighborUpdate(worldProvider,blockEntityRegistry,neighborLocation, neighborBlock);
-                    if (neighborBlock != neighborBlockAfterUpdate) {
-                        worldProvider.setBlock(neighborLocation, neighborBlockAfterUpdate);
-                    }
+            dirty.add(neighborLocation);
+        }
+        flush();
+    }
+
+    /**
+     * Recomputes the connections of every dirty pipe, testing each neighbouring location at most once, and writes all
+     * changed blocks together.
+     */
+    private void flush() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        Map<Vector3i, Boolean> connectable = Maps.newHashMap();
+        Map<Vector3i, Block> changes = Maps.newHashMap();
+        for (Vector3i location : dirty) {
+            if (!worldProvider.isBlockRelevant(location)) {
+                continue;
+            }
+            Block block = worldProvider.getBlock(location);
+            if (!(block.getBlockFamily() instanceof PipeBlockFamily)) {
+                continue;
+            }
+            PipeBlockFamily family = (PipeBlockFamily) block.getBlockFamily();
+            byte connections = 0;
+            for (Side side : Side.values()) {
+                Vector3i neighborLocation = new Vector3i(location);
+                neighborLocation.add(side.getVector3i());
+                if (connectable.computeIfAbsent(neighborLocation, k -> PipeBlockFamily.isConnectable(k, worldProvider, blockEntityRegistry))) {
+                    connections |= SideBitFlag.getSide(side);
                 }
             }
+            Block updated = family.getBlock(connections);
+            if (updated != null && updated != block) {
+                changes.put(location, updated);
+            }
+        }
+        dirty.clear();
+        if (!changes.isEmpty()) {
+            worldProvider.setBlocks(changes);
         }
     }
 
-
     @Override
     public Set<String> getSectionNames() {
         return BLOCK_NAMES;
@@ -15,10 +15,15 @@
  */
 package org.terasology.itempipes.blocks;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import org.terasology.entitySystem.entity.EntityRef;
 import org.terasology.entitySystem.prefab.Prefab;
 import org.terasology.itempipes.event.PipeMappingEvent;
+import org.terasology.itempipes.network.PipeNetwork;
+import org.terasology.itempipes.network.PipeNode;
+import org.terasology.itempipes.network.PipeStatistics;
+import org.terasology.logic.inventory.ItemComponent;
 import org.terasology.math.Rotation;
 import org.terasology.math.Side;
 import org.terasology.math.geom.Quat4f;
@@ -37,104 +42,203 @@ import org.terasology.world.BlockEntityRegistry;
 import org.terasology.world.block.BlockComponent;
 import org.terasology.world.block.family.BlockFamily;
 
+import java.util.List;
 import java.util.Map;
 
 public class PipeBlockSegmentMapper implements SegmentMapping {
     private PathFollowerSystem pathFollowerSystem;
     private SegmentSystem segmentSystem;
     private SegmentCacheSystem segmentCacheSystem;
+    private PipeNetwork network;
+    private PipeStatistics statistics;
     private BlockEntityRegistry blockEntityRegistry;
 
-    public PipeBlockSegmentMapper(BlockEntityRegistry blockEntityRegistry, PathFollowerSystem pathFollowerSystem, SegmentSystem segmentSystem, SegmentCacheSystem segmentCacheSystem) {
-        this.blockEntityRegistry = blockEntityRegistry;
+    private EntityRef actor = EntityRef.NULL;
+    private boolean blocked;
+    private List<PipePacketSplit> splits = Lists.newArrayList();
+
+    public PipeBlockSegmentMapper(PipeNetwork network, PipeStatistics statistics, PathFollowerSystem pathFollowerSystem, SegmentSystem segmentSystem, SegmentCacheSystem segmentCacheSystem, BlockEntityRegistry blockEntityRegistry) {
+        this.network = network;
+        this.statistics = statistics;
         this.pathFollowerSystem = pathFollowerSystem;
         this.segmentCacheSystem = segmentCacheSystem;
         this.segmentSystem = segmentSystem;
+        this.blockEntityRegistry = blockEntityRegistry;
     }
 
 
-    @Override
-    public MappingResult nextSegment(SegmentMeta meta, SegmentEnd ends) {
-        if (meta.association.hasComponent(BlockComponent.class)) {
-            BlockComponent blockComponent = meta.association.getComponent(BlockComponent.class);
-
-            BlockFamily blockFamily = blockComponent.getBlock().getBlockFamily();
+    /**
+     * Sets the item that the following {@link #nextSegment} calls route, so packets can be split at junctions.
+     */
+    public void setActor(EntityRef actor) {
+        this.actor = actor;
+        this.blocked = false;
+    }
 
-            Vector3f v1 = segmentSystem.segmentPosition(meta.association);
-            Quat4f q1 = segmentSystem.segmentRotation(meta.association);
+    /**
+     * @return true if the last {@link #nextSegment} call found the next pipe full, so the item should wait instead of leaving the pipe
+     */
+    public boolean isBlocked() {
+        return blocked;
+    }
 
-            Segment currentSegment = segmentCacheSystem.getSegment(meta.prefab);
+    /**
+     * Moves the packet splits recorded since the last call into the given list.
+     */
+    public List<PipePacketSplit> drainSplits(List<PipePacketSplit> target) {
+        target.addAll(splits);
+        splits.clear();
+        return target;
+    }
 
+    @Override
+    public MappingResult nextSegment(SegmentMeta meta, SegmentEnd ends) {
+        BlockComponent blockComponent = meta.association.getComponent(BlockComponent.class);
+        if (blockComponent == null)
+            return null;
+
+        BlockFamily blockFamily = blockComponent.getBlock().getBlockFamily();
+        if (!(blockFamily instanceof PipeBlockFamily)) {
+            if (!(blockFamily instanceof PathFamily))
+                return null;
             BlockMappingComponent blockMappingComponent = meta.prefab.getComponent(BlockMappingComponent.class);
-            if (blockFamily instanceof PathFamily) {
-
-                Rotation rotation = ((PathFamily) blockFamily).getRotationFor(blockComponent.getBlock().getURI());
-                switch (ends) {
-                    case START: {
-                        Vector3i segment = new Vector3i(blockComponent.getPosition()).add(rotation.rotate(blockMappingComponent.s1).getVector3i());
-                        EntityRef blockEntity = blockEntityRegistry.getBlockEntityAt(segment);
-                        PathDescriptorComponent pathDescriptor = blockEntity.getComponent(PathDescriptorComponent.class);
-                        if (pathDescriptor == null)
-                            return null;
-
-                        Vector3f v2 = segmentSystem.segmentPosition(blockEntity);
-                        Quat4f q2 = segmentSystem.segmentRotation(blockEntity);
-
-                        Map<Side, Prefab> paths = Maps.newHashMap();
-                        for (Prefab d : pathDescriptor.descriptors) {
-                            Segment nextSegment = segmentCacheSystem.getSegment(d);
-                            BlockMappingComponent nextBlockMapping = d.getComponent(BlockMappingComponent.class);
-                            switch (segmentSystem.segmentMatch(currentSegment, v1, q1, nextSegment, v2, q2)) {
-                                case Start_End:
-                                    paths.put(Side.inDirection(q2.rotate(nextBlockMapping.s1.getVector3i().toVector3f())), d);
-                                    break;
-                                case Start_Start:
-                                    paths.put(Side.inDirection(q2.rotate(nextBlockMapping.s2.getVector3i().toVector3f())), d);
-                                    break;
-                            }
-                        }
-                        PipeMappingEvent pipeMappingEvent = blockEntity.send(new PipeMappingEvent(paths.keySet()));
-                        Prefab prefab = paths.get(pipeMappingEvent.getOutputSide());
-                        if (prefab == null)
-                            return null;
-
-                        return new MappingResult(prefab, blockEntity);
+            if (blockMappingComponent == null)
+                return null;
+            Rotation rotation = ((PathFamily) blockFamily).getRotationFor(blockComponent.getBlock().getURI());
+            switch (ends) {
+                case START:
+                    return nextDescribedSegment(meta, ends, blockComponent, rotation.rotate(blockMappingComponent.s1));
+                case END:
+                    return nextDescribedSegment(meta, ends, blockComponent, rotation.rotate(blockMappingComponent.s2));
+                default:
+                    return null;
+            }
+        }
 
-                    }
-                    case END: {
-                        Vector3i segment = new Vector3i(blockComponent.getPosition()).add(rotation.rotate(blockMappingComponent.s2).getVector3i());
-                        EntityRef blockEntity = blockEntityRegistry.getBlockEntityAt(segment);
-                        PathDescriptorComponent pathDescriptor = blockEntity.getComponent(PathDescriptorComponent.class);
-                        if (pathDescriptor == null)
-                            return null;
-
-                        Vector3f v2 = segmentSystem.segmentPosition(blockEntity);
-                        Quat4f q2 = segmentSystem.segmentRotation(blockEntity);
-
-                        Map<Side, Prefab> paths = Maps.newHashMap();
-                        for (Prefab d : pathDescriptor.descriptors) {
-                            Segment nextSegment = segmentCacheSystem.getSegment(d);
-                            BlockMappingComponent nextBlockMapping = d.getComponent(BlockMappingComponent.class);
-                            switch (segmentSystem.segmentMatch(currentSegment, v1, q1, nextSegment, v2, q2)) {
-                                case End_End:
-                                    paths.put(Side.inDirection(q2.rotate(nextBlockMapping.s1.getVector3i().toVector3f())), d);
-                                    break;
-                                case End_Start:
-                                    paths.put(Side.inDirection(q2.rotate(nextBlockMapping.s2.getVector3i().toVector3f())), d);
-                                    break;
-                            }
-                        }
-                        PipeMappingEvent pipeMappingEvent = blockEntity.send(new PipeMappingEvent(paths.keySet()));
-                        Prefab prefab = paths.get(pipeMappingEvent.getOutputSide());
-                        if (prefab == null)
-                            return null;
-
-                        return new MappingResult(prefab, blockEntity);
+        PipeShape shape = ((PipeBlockFamily) blockFamily).getShape(blockComponent.getBlock());
+        int index = shape == null ? -1 : shape.indexOf(meta.prefab);
+        if (index < 0)
+            return null;
+
+        Side side;
+        switch (ends) {
+            case START:
+                side = shape.getStart(index);
+                break;
+            case END:
+                side = shape.getEnd(index);
+                break;
+            default:
+                return null;
+        }
+
+        // linked neighbours are found without building a lookup position
+        PipeNode current = network.getNode(blockComponent.getPosition());
+        PipeNode node = current != null ? current.getNeighbor(side) : network.getNeighbor(blockComponent.getPosition(), side);
+        if (node == null || !node.isPipe())
+            return nextDescribedSegment(meta, ends, blockComponent, side);
+        if (node.isFull()) {
+            blocked = true;
+            return null;
+        }
+
+        PipeTransition transition = ((PipeBlockFamily) node.getBlock().getBlockFamily()).getTransition(node.getSides(), side.reverse());
+        if (transition.isEmpty())
+            return null;
+
+        ItemComponent itemComponent = actor.getComponent(ItemComponent.class);
+        int itemCount = itemComponent == null ? 1 : itemComponent.stackCount;
+        PipeMappingEvent pipeMappingEvent = node.getEntity().send(new PipeMappingEvent(transition.getOutputSides(), itemCount));
+        statistics.mappingEvent();
+        Prefab prefab = transition.getPrefab(pipeMappingEvent.getOutputSide());
+        if (prefab == null)
+            return null;
+
+        if (itemComponent != null && pipeMappingEvent.getRemainingCount() < itemCount) {
+            PipeShape nextShape = ((PipeBlockFamily) node.getBlock().getBlockFamily()).getShape(node.getSides());
+            for (Side output : transition.getOutputSides()) {
+                int count = pipeMappingEvent.getSplitCount(output);
+                if (count > 0) {
+                    Prefab splitPrefab = transition.getPrefab(output);
+                    int splitIndex = nextShape.indexOf(splitPrefab);
+                    if (nextShape.getStart(splitIndex) == side.reverse()) {
+                        splits.add(new PipePacketSplit(actor, node.getEntity(), splitPrefab, 0, 1, count));
+                    } else {
+                        splits.add(new PipePacketSplit(actor, node.getEntity(), splitPrefab,
+                                segmentCacheSystem.getSegment(splitPrefab).maxDistance(), -1, count));
                     }
                 }
             }
+            itemComponent.stackCount = (byte) pipeMappingEvent.getRemainingCount();
+            actor.saveComponent(itemComponent);
         }
 
-        return null;
+        if (current != null) {
+            current.addItems(-1);
+        }
+        node.addItems(1);
+        statistics.hop();
+        return new MappingResult(prefab, node.getEntity());
+    }
+    /**
+     * Matches the path descriptors of the block on the given side against the current segment, for path blocks that
+     * are not pipes of this module.
+     */
+    private MappingResult nextDescribedSegment(SegmentMeta meta, SegmentEnd ends, BlockComponent blockComponent, Side side) {
+        Vector3i neighborPosition = new Vector3i(blockComponent.getPosition());
+        neighborPosition.add(side.getVector3i());
+        EntityRef blockEntity = blockEntityRegistry.getBlockEntityAt(neighborPosition);
+        PathDescriptorComponent pathDescriptor = blockEntity.getComponent(PathDescriptorComponent.class);
+        if (pathDescriptor == null)
+            return null;
+
+        Segment currentSegment = segmentCacheSystem.getSegment(meta.prefab);
+        Vector3f v1 = segmentSystem.segmentPosition(meta.association);
+        Quat4f q1 = segmentSystem.segmentRotation(meta.association);
+        Vector3f v2 = segmentSystem.segmentPosition(blockEntity);
+        Quat4f q2 = segmentSystem.segmentRotation(blockEntity);
+
+        Map<Side, Prefab> paths = Maps.newHashMap();
+        for (Prefab d : pathDescriptor.descriptors) {
+            BlockMappingComponent nextBlockMapping = d.getComponent(BlockMappingComponent.class);
+            Side output = null;
+            switch (segmentSystem.segmentMatch(currentSegment, v1, q1, segmentCacheSystem.getSegment(d), v2, q2)) {
+                case Start_End:
+                    output = ends == SegmentEnd.START ? nextBlockMapping.s1 : null;
+                    break;
+                case Start_Start:
+                    output = ends == SegmentEnd.START ? nextBlockMapping.s2 : null;
+                    break;
+                case End_End:
+                    output = ends == SegmentEnd.END ? nextBlockMapping.s1 : null;
+                    break;
+                case End_Start:
+                    output = ends == SegmentEnd.END ? nextBlockMapping.s2 : null;
+                    break;
+            }
+            if (output != null) {
+                paths.put(Side.inDirection(q2.rotate(output.getVector3i().toVector3f())), d);
+            }
+        }
+        PipeNode next = network.getNode(neighborPosition);
+        if (next != null && next.isFull() && !paths.isEmpty()) {
+            blocked = true;
+            return null;
+        }
+        PipeMappingEvent pipeMappingEvent = blockEntity.send(new PipeMappingEvent(paths.keySet()));
+        statistics.mappingEvent();
+        Prefab prefab = paths.get(pipeMappingEvent.getOutputSide());
+        if (prefab == null)
+            return null;
+
+        PipeNode current = network.getNode(blockComponent.getPosition());
+        if (current != null) {
+            current.addItems(-1);
+        }
+        if (next != null) {
+            next.addItems(1);
+        }
+        statistics.hop();
+        return new MappingResult(prefab, blockEntity);
     }
 }
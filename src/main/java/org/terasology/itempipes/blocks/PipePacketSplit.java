@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.itempipes.blocks;
+
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.prefab.Prefab;
+
+/**
+ * Part of an item packet that a mapping decision sent down a different output than the rest of the packet.
+ */
+public class PipePacketSplit {
+    private final EntityRef actor;
+    private final EntityRef association;
+    private final Prefab prefab;
+    private final float position;
+    private final int sign;
+    private final int count;
+
+    public PipePacketSplit(EntityRef actor, EntityRef association, Prefab prefab, float position, int sign, int count) {
+        this.actor = actor;
+        this.association = association;
+        this.prefab = prefab;
+        this.position = position;
+        this.sign = sign;
+        this.count = count;
+    }
+
+    public EntityRef getActor() {
+        return actor;
+    }
+
+    public EntityRef getAssociation() {
+        return association;
+    }
+
+    public Prefab getPrefab() {
+        return prefab;
+    }
+
+    public float getPosition() {
+        return position;
+    }
+
+    public int getSign() {
+        return sign;
+    }
+
+    public int getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.itempipes.blocks;
+
+import org.terasology.entitySystem.prefab.Prefab;
+import org.terasology.math.Rotation;
+import org.terasology.math.Side;
+import org.terasology.math.SideBitFlag;
+import org.terasology.segmentedpaths.components.BlockMappingComponent;
+import org.terasology.segmentedpaths.components.PathDescriptorComponent;
+import org.terasology.world.block.Block;
+
+import java.util.Arrays;
+
+/**
+ * Static data for one block of a {@link PipeBlockFamily}: its connection sides, rotation and the
+ * world space ends of every path prefab after that rotation.
+ */
+public class PipeShape {
+    private static final Prefab[] NO_PATHS = new Prefab[0];
+
+    private final byte connections;
+    private final Block block;
+    private final Rotation rotation;
+
+    private final Prefab[] paths;
+    private final Side[] starts;
+    private final Side[] ends;
+    private final byte[] pathSides;
+
+    private final PipeTransition[] transitions = new PipeTransition[Side.values().length];
+
+    PipeShape(byte connections, Block block, Rotation rotation) {
+        this.connections = connections;
+        this.block = block;
+        this.rotation = rotation;
+
+        Prefab[] descriptors = NO_PATHS;
+        if (block.getPrefab().isPresent()) {
+            PathDescriptorComponent pathDescriptor = block.getPrefab().get().getComponent(PathDescriptorComponent.class);
+            if (pathDescriptor != null && rotation != null) {
+                descriptors = pathDescriptor.descriptors.stream()
+                        .filter(path -> path.hasComponent(BlockMappingComponent.class))
+                        .toArray(Prefab[]::new);
+            }
+        }
+        this.paths = descriptors;
+        this.starts = new Side[paths.length];
+        this.ends = new Side[paths.length];
+        this.pathSides = new byte[paths.length];
+
+        Prefab[][] outputs = new Prefab[Side.values().length][Side.values().length];
+        for (int i = 0; i < paths.length; i++) {
+            BlockMappingComponent blockMappingComponent = paths[i].getComponent(BlockMappingComponent.class);
+            starts[i] = rotation.rotate(blockMappingComponent.s1);
+            ends[i] = rotation.rotate(blockMappingComponent.s2);
+            pathSides[i] = (byte) (SideBitFlag.getSide(starts[i]) | SideBitFlag.getSide(ends[i]));
+            outputs[starts[i].ordinal()][ends[i].ordinal()] = paths[i];
+            outputs[ends[i].ordinal()][starts[i].ordinal()] = paths[i];
+        }
+
+        Arrays.fill(transitions, PipeTransition.EMPTY);
+        for (Side entry : Side.values()) {
+            PipeTransition transition = new PipeTransition(outputs[entry.ordinal()]);
+            if (!transition.isEmpty()) {
+                transitions[entry.ordinal()] = transition;
+            }
+        }
+    }
+
+    public byte getConnections() {
+        return connections;
+    }
+
+    public boolean hasSide(Side side) {
+        return (connections & SideBitFlag.getSide(side)) != 0;
+    }
+
+    public Block getBlock() {
+        return block;
+    }
+
+    public Rotation getRotation() {
+        return rotation;
+    }
+
+    public int getPathCount() {
+        return paths.length;
+    }
+
+    public Prefab getPath(int index) {
+        return paths[index];
+    }
+
+    /**
+     * @return the index of the given path prefab in this shape or -1
+     */
+    public int indexOf(Prefab path) {
+        for (int i = 0; i < paths.length; i++) {
+            if (paths[i] == path) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the rotated s1 side of the path
+     */
+    public Side getStart(int index) {
+        return starts[index];
+    }
+
+    /**
+     * @return the rotated s2 side of the path
+     */
+    public Side getEnd(int index) {
+        return ends[index];
+    }
+
+    /**
+     * @return bitmask of both rotated ends of the path
+     */
+    public byte getPathSides(int index) {
+        return pathSides[index];
+    }
+
+    public PipeTransition getTransition(Side entrySide) {
+        return transitions[entrySide.ordinal()];
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.itempipes.blocks;
+
+import org.terasology.entitySystem.prefab.Prefab;
+import org.terasology.math.Side;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Precomputed answer for entering a pipe block through a given side: the path prefab to follow for every output side.
+ */
+public class PipeTransition {
+    public static final PipeTransition EMPTY = new PipeTransition(new Prefab[Side.values().length]);
+
+    private final Prefab[] prefabs;
+    private final Set<Side> outputSides;
+
+    PipeTransition(Prefab[] prefabs) {
+        this.prefabs = prefabs;
+        EnumSet<Side> sides = EnumSet.noneOf(Side.class);
+        for (Side side : Side.values()) {
+            if (prefabs[side.ordinal()] != null) {
+                sides.add(side);
+            }
+        }
+        this.outputSides = Collections.unmodifiableSet(sides);
+    }
+
+    public Prefab getPrefab(Side outputSide) {
+        if (outputSide == null) {
+            return null;
+        }
+        return prefabs[outputSide.ordinal()];
+    }
+
+    public Set<Side> getOutputSides() {
+        return outputSides;
+    }
+
+    public boolean isEmpty() {
+        return outputSides.isEmpty();
+    }
+}
@@ -19,4 +19,9 @@ import org.terasology.entitySystem.Component;
 
 public class PipeComponent implements Component {
     public float friction = .1f;
+    /**
+     * Maximum number of packets in this block at once, 0 for no limit. A packet is one item entity, however many items
+     * it stacks.
+     */
+    public int capacity = 8;
 }
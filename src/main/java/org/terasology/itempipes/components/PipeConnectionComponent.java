@@ -21,5 +21,5 @@ import org.terasology.math.Side;
 import java.util.List;
 
 public class PipeConnectionComponent implements Component {
-    List<Side> sides;
+    public List<Side> sides;
 }
@@ -0,0 +1,26 @@
+/*
+ * Copyright 2017 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.itempipes.components;
+
+import org.terasology.entitySystem.Component;
+
+/**
+ * Sends items entering this pipe to the output whose next pipe currently holds the fewest packets. That is the
+ * packet count of the whole neighbouring block, which may also carry items that will not leave through this output.
+ */
+public class PipeLeastOccupiedMappingComponent implements Component {
+    public int next;
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2017 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.itempipes.components;
+
+import com.google.common.collect.Maps;
+import org.terasology.entitySystem.Component;
+
+import java.util.Map;
+
+/**
+ * Splits items entering this pipe over its outputs in a fixed ratio. Weights are keyed by side name,
+ * outputs without a weight count as 1 and outputs with a weight of 0 are never used.
+ */
+public class PipeRatioMappingComponent implements Component {
+    public Map<String, Integer> weights = Maps.newHashMap();
+}
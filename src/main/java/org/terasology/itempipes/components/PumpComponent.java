@@ -0,0 +1,37 @@
+/*
+ * Copyright 2017 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.itempipes.components;
+
+import org.terasology.entitySystem.Component;
+
+/**
+ * Pulls items out of adjacent inventories and feeds them into adjacent pipes.
+ */
+public class PumpComponent implements Component {
+    /**
+     * Interval in milliseconds between two extractions.
+     */
+    public float delay = 500f;
+    public long lastTime;
+
+    /**
+     * Maximum number of items taken per extraction, unless a whole stack is taken.
+     */
+    public int batchSize = 16;
+    public boolean wholeStack;
+
+    public float velocity = 1f;
+}
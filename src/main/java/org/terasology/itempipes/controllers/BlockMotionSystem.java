@@ -15,33 +15,57 @@
  */
 package org.terasology.itempipes.controllers;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.terasology.engine.Time;
 import org.terasology.entitySystem.entity.EntityManager;
 import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.entity.lifecycleEvents.BeforeDeactivateComponent;
+import org.terasology.entitySystem.entity.lifecycleEvents.OnActivatedComponent;
+import org.terasology.entitySystem.event.ReceiveEvent;
+import org.terasology.entitySystem.prefab.Prefab;
 import org.terasology.entitySystem.systems.BaseComponentSystem;
 import org.terasology.entitySystem.systems.RegisterMode;
 import org.terasology.entitySystem.systems.RegisterSystem;
 import org.terasology.entitySystem.systems.UpdateSubscriberSystem;
 import org.terasology.itempipes.components.PipeConnectionComponent;
 import org.terasology.itempipes.event.PipeInsertEvent;
+import org.terasology.itempipes.event.PipeSegmentEnteredEvent;
+import org.terasology.itempipes.event.PipeSegmentLeftEvent;
+import org.terasology.itempipes.network.PipeNode;
+import org.terasology.itempipes.network.PipeStatistics;
+import org.terasology.logic.console.commandSystem.annotations.Command;
+import org.terasology.logic.console.commandSystem.annotations.CommandParam;
+import org.terasology.logic.inventory.InventoryComponent;
 import org.terasology.logic.location.LocationComponent;
-import org.terasology.math.Rotation;
+import org.terasology.logic.permission.PermissionManager;
+import org.terasology.math.Side;
 import org.terasology.math.geom.Vector3f;
 import org.terasology.math.geom.Vector3i;
 import org.terasology.registry.In;
-import org.terasology.segmentedpaths.blocks.PathFamily;
-import org.terasology.segmentedpaths.components.BlockMappingComponent;
+import org.terasology.registry.Share;
+import org.terasology.segmentedpaths.SegmentMeta;
 import org.terasology.segmentedpaths.components.PathFollowerComponent;
 import org.terasology.segmentedpaths.controllers.PathFollowerSystem;
 import org.terasology.segmentedpaths.controllers.SegmentCacheSystem;
 import org.terasology.segmentedpaths.controllers.SegmentSystem;
 import org.terasology.itempipes.blocks.PipeBlockSegmentMapper;
+import org.terasology.itempipes.blocks.PipePacketSplit;
+import org.terasology.itempipes.blocks.PipeShape;
 import org.terasology.itempipes.components.PipeComponent;
 import org.terasology.itempipes.components.PipeFollowingComponent;
 import org.terasology.world.BlockEntityRegistry;
+import org.terasology.world.WorldComponent;
+import org.terasology.world.WorldProvider;
 import org.terasology.world.block.BlockComponent;
-import org.terasology.world.block.family.BlockFamily;
+import org.terasology.world.chunks.event.OnChunkLoaded;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 @RegisterSystem(RegisterMode.AUTHORITY)
+@Share(value = BlockMotionSystem.class)
 public class BlockMotionSystem extends BaseComponentSystem implements UpdateSubscriberSystem {
     @In
     EntityManager entityManager;
@@ -55,60 +79,515 @@ public class BlockMotionSystem extends BaseComponentSystem implements UpdateSubs
     SegmentCacheSystem segmentCacheSystem;
     @In
     PipeSystem pipeSystem;
+    @In
+    WorldProvider worldProvider;
+    @In
+    Time time;
 
     private PipeBlockSegmentMapper segmentMapping;
 
+    private PipeCommandBuffer commandBuffer = new PipeCommandBuffer();
+    private PipeTransportEngine transportEngine;
+    private int transportParallelism = 1;
+    private float locationSyncInterval = .1f;
+    private float locationSyncTimer;
+
+    private PipePacketCoalescer packetCoalescer = new PipePacketCoalescer();
+    private List<PipePacketSplit> packetSplits = Lists.newArrayList();
+    private float packetInterval = .5f;
+    private float packetTimer;
+
+    private boolean segmentReplication;
+    private boolean hopped;
+    private boolean blocked;
+
+    private Map<EntityRef, Suspension> suspended = Maps.newHashMap();
+    private boolean resumeDue;
+    private float fastForwardLimit;
+
+    /**
+     * An item waiting for the region ahead of it to load.
+     */
+    private static class Suspension {
+        private final Vector3i target;
+        private final long since;
+
+        Suspension(Vector3i target, long since) {
+            this.target = target;
+            this.since = since;
+        }
+    }
+
     @Override
     public void initialise() {
-        segmentMapping = new PipeBlockSegmentMapper(blockEntityRegistry, pathFollowerSystem,segmentSystem, segmentCacheSystem);
+        segmentMapping = new PipeBlockSegmentMapper(pipeSystem.getNetwork(), pipeSystem.getStatistics(), pathFollowerSystem,segmentSystem, segmentCacheSystem, blockEntityRegistry);
+    }
+
+    @Command(shortDescription = "Switches in-pipe items between the entity based and the array based transport engine",
+            runOnServer = true, requiredPermission = PermissionManager.DEBUG_PERMISSION)
+    public String pipeTransportEngine(@CommandParam("enabled") boolean enabled) {
+        setTransportEngineEnabled(enabled);
+        return "Pipe transport engine " + (enabled ? "enabled" : "disabled");
+    }
+
+    @Command(shortDescription = "Sets the number of threads the transport engine uses to advance in-pipe items",
+            runOnServer = true, requiredPermission = PermissionManager.DEBUG_PERMISSION)
+    public String pipeTransportThreads(@CommandParam("threads") int threads) {
+        setTransportParallelism(threads);
+        return "Pipe transport engine uses " + transportParallelism + " thread(s)";
+    }
+
+    @Command(shortDescription = "Switches clients between per-tick item locations and segment entry events for in-pipe items",
+            runOnServer = true, requiredPermission = PermissionManager.DEBUG_PERMISSION)
+    public String pipeSegmentReplication(@CommandParam("enabled") boolean enabled) {
+        setSegmentReplication(enabled);
+        return "Pipe segment replication " + (enabled ? "enabled" : "disabled");
+    }
+
+    /**
+     * When enabled the location and path components of in-pipe items are only saved when they enter a segment or leave
+     * the pipes, and clients extrapolate them from {@link PipeSegmentEnteredEvent}s in between.
+     */
+    public void setSegmentReplication(boolean segmentReplication) {
+        boolean enabled = segmentReplication && !this.segmentReplication;
+        this.segmentReplication = segmentReplication;
+        if (enabled) {
+            // items already on their way would stand still on clients until their next hop
+            for (EntityRef entityRef : entityManager.getEntitiesWith(PipeFollowingComponent.class, PathFollowerComponent.class)) {
+                int index = transportEngine == null ? -1 : transportEngine.indexOf(entityRef);
+                if (index != -1) {
+                    syncItem(index);
+                }
+                replicateSegment(entityRef);
+            }
+        }
+    }
+
+    public void setTransportParallelism(int parallelism) {
+        transportParallelism = Math.max(1, parallelism);
+        if (transportEngine != null) {
+            transportEngine.setParallelism(transportParallelism);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        if (transportEngine != null) {
+            transportEngine.shutdown();
+        }
+    }
+
+    public boolean isTransportEngineEnabled() {
+        return transportEngine != null;
+    }
+
+    public void setTransportEngineEnabled(boolean enabled) {
+        if (enabled == isTransportEngineEnabled()) {
+            return;
+        }
+        if (enabled) {
+            transportEngine = new PipeTransportEngine();
+            transportEngine.setParallelism(transportParallelism);
+            for (EntityRef entityRef : entityManager.getEntitiesWith(PipeFollowingComponent.class, PathFollowerComponent.class)) {
+                if (!suspended.containsKey(entityRef)) {
+                    track(entityRef);
+                }
+            }
+        } else {
+            for (int i = 0; i < transportEngine.size(); i++) {
+                if (!transportEngine.isRemoved(i)) {
+                    syncItem(i);
+                }
+            }
+            transportEngine.shutdown();
+            transportEngine = null;
+            commandBuffer.apply(pipeSystem);
+        }
+    }
+
+    /**
+     * Interval in seconds at which the transport engine writes item locations back to their entities.
+     */
+    public void setLocationSyncInterval(float locationSyncInterval) {
+        this.locationSyncInterval = locationSyncInterval;
+    }
+
+    /**
+     * Maximum time in seconds that a resumed item is moved ahead to make up for the time it was suspended, 0 resumes
+     * items exactly where they stopped.
+     */
+    public void setFastForwardLimit(float fastForwardLimit) {
+        this.fastForwardLimit = fastForwardLimit;
+    }
+
+    public int getSuspendedCount() {
+        return suspended.size();
+    }
+
+    public PipePacketCoalescer getPacketCoalescer() {
+        return packetCoalescer;
+    }
+
+    /**
+     * Interval in seconds between passes that merge identical co-travelling items into packets, 0 disables merging.
+     */
+    public void setPacketInterval(float packetInterval) {
+        this.packetInterval = packetInterval;
+    }
+
+    /**
+     * Writes the current motion state of an item back to its components. Only needed while the transport engine is enabled.
+     */
+    public void observe(EntityRef entityRef) {
+        if (transportEngine != null) {
+            int index = transportEngine.indexOf(entityRef);
+            if (index != -1) {
+                syncItem(index);
+            }
+        }
+    }
+
+    @ReceiveEvent(components = {PipeFollowingComponent.class, PathFollowerComponent.class})
+    public void onItemEntered(OnActivatedComponent event, EntityRef entityRef) {
+        if (transportEngine != null && !suspended.containsKey(entityRef)) {
+            track(entityRef);
+        }
+        if (segmentReplication) {
+            replicateSegment(entityRef);
+        }
+    }
+
+    @ReceiveEvent(components = {PipeFollowingComponent.class})
+    public void onItemLeft(BeforeDeactivateComponent event, EntityRef entityRef) {
+        if (segmentReplication) {
+            entityRef.send(new PipeSegmentLeftEvent());
+        }
+        suspended.remove(entityRef);
+        if (transportEngine != null) {
+            transportEngine.remove(entityRef);
+        }
+    }
+
+    @ReceiveEvent(components = {WorldComponent.class})
+    public void onChunkLoaded(OnChunkLoaded event, EntityRef worldEntity) {
+        resumeDue = !suspended.isEmpty();
     }
+
     @Override
     public void update(float delta) {
+        long started = System.nanoTime();
+        if (resumeDue) {
+            resumeDue = false;
+            resume();
+        }
+        if (transportEngine != null) {
+            updateEngine(delta);
+        } else {
+            updateEntities(delta);
+        }
+        pipeSystem.getStatistics().recordUpdate(System.nanoTime() - started);
+    }
+
+    private void updateEntities(float delta) {
         for(EntityRef entityRef: entityManager.getEntitiesWith(PipeFollowingComponent.class)) {
+            if (suspended.containsKey(entityRef)) {
+                continue;
+            }
             PathFollowerComponent pathFollowingComponent = entityRef.getComponent(PathFollowerComponent.class);
             EntityRef blockEntity =  pathFollowingComponent.segmentMeta.association;
             if(!blockEntity.exists()) {
-                pipeSystem.dropItem(entityRef);
-                return;
+                if (!suspendUnloaded(entityRef)) {
+                    commandBuffer.dropItem(entityRef, PipeStatistics.DropReason.PIPE_REMOVED);
+                }
+                continue;
             }
             PipeComponent pipeComponent = blockEntity.getComponent(PipeComponent.class);
             PipeFollowingComponent pipeFollowingComponent = entityRef.getComponent(PipeFollowingComponent.class);
             LocationComponent locationComponent =  entityRef.getComponent(LocationComponent.class);
 
             pipeFollowingComponent.velocity -= pipeComponent.friction * delta;
-            if(Math.abs(pipeFollowingComponent.velocity) < .5f)
-                pipeFollowingComponent.velocity = .5f * Math.signum(pipeFollowingComponent.velocity);
+            if(Math.abs(pipeFollowingComponent.velocity) < PipeTransportEngine.MIN_VELOCITY)
+                pipeFollowingComponent.velocity = PipeTransportEngine.MIN_VELOCITY * Math.signum(pipeFollowingComponent.velocity);
 
-            if (pathFollowerSystem.move(entityRef, delta * pipeFollowingComponent.velocity, segmentMapping)) {
+            if (move(entityRef, delta * pipeFollowingComponent.velocity)) {
                 Vector3f position = pathFollowerSystem.vehiclePoint(entityRef);
                 locationComponent.setWorldPosition(position);
+            } else if (blocked || !exitPipe(entityRef, pathFollowingComponent)) {
+                hold(pathFollowingComponent);
+                locationComponent.setWorldPosition(pathFollowerSystem.vehiclePoint(entityRef));
             } else {
-                BlockComponent blockComponent = blockEntity.getComponent(BlockComponent.class);
-                BlockFamily blockFamily = blockComponent.getBlock().getBlockFamily();
-                BlockMappingComponent blockMappingComponent = pathFollowingComponent.segmentMeta.prefab.getComponent(BlockMappingComponent.class);
-                if (blockFamily instanceof PathFamily) {
-                    Rotation rotation = ((PathFamily) blockFamily).getRotationFor(blockComponent.getBlock().getURI());
-                    Vector3i position = new Vector3i(blockComponent.getPosition());
-                    if (pathFollowingComponent.segmentMeta.sign == 1) {
-                        position.add(rotation.rotate(blockMappingComponent.s2).getVector3i());
-                    } else {
-                        position.add(rotation.rotate(blockMappingComponent.s1).getVector3i());
-                    }
-                    EntityRef nextBlock = blockEntityRegistry.getBlockEntityAt(position);
-                    pipeSystem.dropItem(entityRef);
-                    if (nextBlock.hasComponent(PipeConnectionComponent.class)) {
-                        nextBlock.send(new PipeInsertEvent(entityRef, pathFollowingComponent.segmentMeta));
-                    }
-                } else {
-                    pipeSystem.dropItem(entityRef);
+                continue;
+            }
+            // with segment replication clients extrapolate from the segment events, the components are only saved on a hop
+            if (!segmentReplication || hopped) {
+                entityRef.saveComponent(locationComponent);
+                entityRef.saveComponent(pathFollowingComponent);
+                entityRef.saveComponent(pipeFollowingComponent);
+            }
+        }
+        if (packetsDue(delta)) {
+            packetCoalescer.coalesce(entityManager.getEntitiesWith(PipeFollowingComponent.class), commandBuffer);
+        }
+        commandBuffer.apply(pipeSystem);
+    }
+
+    private void updateEngine(float delta) {
+        // compute phase, may run on several threads
+        transportEngine.integrate(delta);
+
+        // commit phase, resolves hops and writes components in slot order
+        for (int n = 0; n < transportEngine.getTransitionCount(); n++) {
+            int index = transportEngine.getTransition(n);
+            if (transportEngine.isRemoved(index)) {
+                continue;
+            }
+            EntityRef entityRef = transportEngine.getEntity(index);
+            PathFollowerComponent pathFollowingComponent = entityRef.getComponent(PathFollowerComponent.class);
+            PipeFollowingComponent pipeFollowingComponent = entityRef.getComponent(PipeFollowingComponent.class);
+            pathFollowingComponent.segmentMeta.position = transportEngine.getDistance(index);
+            pipeFollowingComponent.velocity = transportEngine.getVelocity(index);
+
+            if (!pathFollowingComponent.segmentMeta.association.exists()) {
+                if (!suspendUnloaded(entityRef)) {
+                    commandBuffer.dropItem(entityRef, PipeStatistics.DropReason.PIPE_REMOVED);
+                }
+                continue;
+            }
+            boolean moved = move(entityRef, delta * pipeFollowingComponent.velocity);
+            if (!moved && (blocked || !exitPipe(entityRef, pathFollowingComponent))) {
+                hold(pathFollowingComponent);
+                moved = true;
+            }
+            if (moved && !transportEngine.isRemoved(index)) {
+                load(index, pathFollowingComponent, pipeFollowingComponent);
+                if (!segmentReplication || hopped) {
+                    LocationComponent locationComponent = entityRef.getComponent(LocationComponent.class);
+                    locationComponent.setWorldPosition(pathFollowerSystem.vehiclePoint(entityRef));
+                    entityRef.saveComponent(locationComponent);
+                    entityRef.saveComponent(pathFollowingComponent);
+                    entityRef.saveComponent(pipeFollowingComponent);
+                }
+            }
+        }
+
+        locationSyncTimer += delta;
+        if (locationSyncTimer >= locationSyncInterval) {
+            locationSyncTimer = 0;
+            for (int i = 0; i < transportEngine.size(); i++) {
+                if (!transportEngine.isRemoved(i)) {
+                    syncItem(i);
+                }
+            }
+            if (packetsDue(locationSyncInterval)) {
+                packetCoalescer.coalesce(entityManager.getEntitiesWith(PipeFollowingComponent.class), commandBuffer);
+            }
+        }
+        commandBuffer.apply(pipeSystem);
+        transportEngine.compact();
+    }
+
+    /**
+     * Suspends an item whose pipe entity is gone because the pipe is no longer relevant, rather than dropping it.
+     *
+     * @return false if the pipe really was removed
+     */
+    private boolean suspendUnloaded(EntityRef entityRef) {
+        LocationComponent locationComponent = entityRef.getComponent(LocationComponent.class);
+        if (locationComponent == null) {
+            return false;
+        }
+        Vector3f position = locationComponent.getWorldPosition();
+        Vector3i blockPosition = new Vector3i(Math.round(position.x), Math.round(position.y), Math.round(position.z));
+        if (worldProvider.isBlockRelevant(blockPosition)) {
+            return false;
+        }
+        suspend(entityRef, blockPosition);
+        return true;
+    }
+
+    private void suspend(EntityRef entityRef, Vector3i target) {
+        suspended.put(entityRef, new Suspension(target, time.getGameTimeInMs()));
+        if (transportEngine != null) {
+            transportEngine.remove(entityRef);
+        }
+    }
 
+    /**
+     * Lets items whose region has loaded again continue, optionally moving them ahead by the time they were waiting.
+     */
+    private void resume() {
+        long now = time.getGameTimeInMs();
+        Iterator<Map.Entry<EntityRef, Suspension>> iterator = suspended.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<EntityRef, Suspension> entry = iterator.next();
+            EntityRef entityRef = entry.getKey();
+            if (!worldProvider.isBlockRelevant(entry.getValue().target)) {
+                continue;
+            }
+            iterator.remove();
+            PathFollowerComponent pathFollowingComponent = entityRef.getComponent(PathFollowerComponent.class);
+            PipeFollowingComponent pipeFollowingComponent = entityRef.getComponent(PipeFollowingComponent.class);
+            if (pathFollowingComponent == null || pipeFollowingComponent == null) {
+                continue;
+            }
+            if (!pathFollowingComponent.segmentMeta.association.exists()) {
+                commandBuffer.dropItem(entityRef, PipeStatistics.DropReason.PIPE_REMOVED);
+                continue;
+            }
+            if (fastForwardLimit > 0) {
+                float seconds = Math.min(fastForwardLimit, (now - entry.getValue().since) / 1000f);
+                if (move(entityRef, seconds * pipeFollowingComponent.velocity)) {
+                    entityRef.saveComponent(pathFollowingComponent);
+                } else {
+                    hold(pathFollowingComponent);
+                    entityRef.saveComponent(pathFollowingComponent);
                 }
-                return;
             }
+            if (transportEngine != null) {
+                track(entityRef);
+            }
+        }
+    }
+
+    /**
+     * Keeps an item at the end of its segment while the block ahead cannot take it.
+     */
+    private void hold(PathFollowerComponent pathFollowingComponent) {
+        SegmentMeta meta = pathFollowingComponent.segmentMeta;
+        float length = segmentCacheSystem.getSegment(meta.prefab).maxDistance();
+        meta.position = Math.max(0, Math.min(length, meta.position));
+    }
+
+    private boolean move(EntityRef entityRef, float distance) {
+        SegmentMeta meta = entityRef.getComponent(PathFollowerComponent.class).segmentMeta;
+        Prefab segment = meta.prefab;
+        EntityRef association = meta.association;
+        segmentMapping.setActor(entityRef);
+        boolean result = pathFollowerSystem.move(entityRef, distance, segmentMapping);
+        // read before the actor is reset, which clears the flag
+        blocked = !result && segmentMapping.isBlocked();
+        segmentMapping.setActor(EntityRef.NULL);
+        meta = entityRef.getComponent(PathFollowerComponent.class).segmentMeta;
+        hopped = result && (meta.prefab != segment || !meta.association.equals(association));
+        if (hopped && segmentReplication) {
+            replicateSegment(entityRef);
+        }
+        for (PipePacketSplit split : segmentMapping.drainSplits(packetSplits)) {
+            commandBuffer.split(split);
+        }
+        packetSplits.clear();
+        return result;
+    }
+
+    private void replicateSegment(EntityRef entityRef) {
+        SegmentMeta meta = entityRef.getComponent(PathFollowerComponent.class).segmentMeta;
+        PipeFollowingComponent pipeFollowingComponent = entityRef.getComponent(PipeFollowingComponent.class);
+        if (meta == null || pipeFollowingComponent == null) {
+            return;
+        }
+        entityRef.send(new PipeSegmentEnteredEvent(meta.prefab, meta.association, meta.position,
+                pipeFollowingComponent.velocity, meta.sign, time.getGameTimeInMs()));
+    }
+
+    private boolean packetsDue(float delta) {
+        if (packetInterval <= 0) {
+            return false;
+        }
+        packetTimer += delta;
+        if (packetTimer < packetInterval) {
+            return false;
+        }
+        packetTimer = 0;
+        return true;
+    }
+
+    private void track(EntityRef entityRef) {
+        PathFollowerComponent pathFollowingComponent = entityRef.getComponent(PathFollowerComponent.class);
+        PipeFollowingComponent pipeFollowingComponent = entityRef.getComponent(PipeFollowingComponent.class);
+        if (pathFollowingComponent == null || pathFollowingComponent.segmentMeta == null || pipeFollowingComponent == null) {
+            return;
+        }
+        load(transportEngine.add(entityRef), pathFollowingComponent, pipeFollowingComponent);
+    }
+
+    private void load(int index, PathFollowerComponent pathFollowingComponent, PipeFollowingComponent pipeFollowingComponent) {
+        SegmentMeta meta = pathFollowingComponent.segmentMeta;
+        PipeComponent pipeComponent = meta.association.getComponent(PipeComponent.class);
+        transportEngine.set(index, meta.prefab, segmentCacheSystem.getSegment(meta.prefab).maxDistance(),
+                meta.position, meta.sign, pipeFollowingComponent.velocity, pipeComponent == null ? 0 : pipeComponent.friction);
+    }
+
+    private void syncItem(int index) {
+        EntityRef entityRef = transportEngine.getEntity(index);
+        PathFollowerComponent pathFollowingComponent = entityRef.getComponent(PathFollowerComponent.class);
+        PipeFollowingComponent pipeFollowingComponent = entityRef.getComponent(PipeFollowingComponent.class);
+        LocationComponent locationComponent = entityRef.getComponent(LocationComponent.class);
+        if (pathFollowingComponent == null || pipeFollowingComponent == null || locationComponent == null) {
+            return;
+        }
+        if (!pathFollowingComponent.segmentMeta.association.exists()) {
+            commandBuffer.dropItem(entityRef, PipeStatistics.DropReason.PIPE_REMOVED);
+            return;
+        }
+        pathFollowingComponent.segmentMeta.position = transportEngine.getDistance(index);
+        pipeFollowingComponent.velocity = transportEngine.getVelocity(index);
+        if (!segmentReplication) {
+            locationComponent.setWorldPosition(pathFollowerSystem.vehiclePoint(entityRef));
             entityRef.saveComponent(locationComponent);
             entityRef.saveComponent(pathFollowingComponent);
             entityRef.saveComponent(pipeFollowingComponent);
         }
     }
 
+    /**
+     * @return false if the item stays in the pipe waiting for the block ahead to accept it
+     */
+    private boolean exitPipe(EntityRef entityRef, PathFollowerComponent pathFollowingComponent) {
+        BlockComponent blockComponent = pathFollowingComponent.segmentMeta.association.getComponent(BlockComponent.class);
+        PipeShape shape = pipeSystem.getShape(blockComponent.getBlock());
+        int index = shape == null ? -1 : shape.indexOf(pathFollowingComponent.segmentMeta.prefab);
+        PipeStatistics.DropReason reason = PipeStatistics.DropReason.NO_PATH;
+        EntityRef endpoint = EntityRef.NULL;
+        if (index >= 0) {
+            reason = PipeStatistics.DropReason.OPEN_END;
+            Side side;
+            if (pathFollowingComponent.segmentMeta.sign == 1) {
+                side = shape.getEnd(index);
+            } else {
+                side = shape.getStart(index);
+            }
+            PipeNode nextNode = pipeSystem.getNetwork().getNeighbor(blockComponent.getPosition(), side);
+            if (nextNode == null) {
+                Vector3i nextPosition = new Vector3i(blockComponent.getPosition());
+                nextPosition.add(side.getVector3i());
+                if (!worldProvider.isBlockRelevant(nextPosition)) {
+                    // the pipe may go on in a region that is not loaded
+                    suspend(entityRef, nextPosition);
+                    return false;
+                }
+            }
+            if (nextNode != null && nextNode.getEntity().hasComponent(PipeConnectionComponent.class)) {
+                if (nextNode.getEntity().hasComponent(InventoryComponent.class)) {
+                    // the inventory takes the item out of the pipe once it has room for it
+                    commandBuffer.send(nextNode.getEntity(), new PipeInsertEvent(entityRef, pathFollowingComponent.segmentMeta));
+                    return false;
+                }
+                endpoint = nextNode.getEntity();
+                reason = PipeStatistics.DropReason.ENDPOINT;
+            }
+        }
+        if (segmentReplication) {
+            // the location was last written when the item entered this segment
+            LocationComponent locationComponent = entityRef.getComponent(LocationComponent.class);
+            locationComponent.setWorldPosition(pathFollowerSystem.vehiclePoint(entityRef));
+            entityRef.saveComponent(locationComponent);
+        }
+        commandBuffer.dropItem(entityRef, reason);
+        if (endpoint.exists()) {
+            // other endpoints get the item once it is a pickup again
+            commandBuffer.send(endpoint, new PipeInsertEvent(entityRef, pathFollowingComponent.segmentMeta));
+        }
+        return true;
+    }
+
 }
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.itempipes.controllers;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import org.terasology.entitySystem.Component;
+import org.terasology.entitySystem.metadata.ComponentLibrary;
+import org.terasology.entitySystem.prefab.Prefab;
+import org.terasology.itempipes.components.PipeFollowingComponent;
+import org.terasology.logic.common.lifespan.LifespanComponent;
+import org.terasology.logic.inventory.PickupComponent;
+import org.terasology.physics.components.RigidBodyComponent;
+import org.terasology.segmentedpaths.components.PathFollowerComponent;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The parts of an item's pickup prefab, sorted once by what an item needs as a pickup and what it keeps while in a
+ * pipe. Components handed out are always copies, the prefab's own instances are never attached to an entity.
+ */
+public class PickupTemplate {
+    /**
+     * Components that only a pickup has, removed when an item enters a pipe.
+     */
+    public static final List<Class<? extends Component>> PICKUP_TYPES = ImmutableList.of(
+            PickupComponent.class, RigidBodyComponent.class, LifespanComponent.class);
+    /**
+     * Components that only an item in a pipe has, removed when it leaves the pipe.
+     */
+    public static final List<Class<? extends Component>> PIPE_TYPES = ImmutableList.of(
+            PipeFollowingComponent.class, PathFollowerComponent.class);
+
+    private final Component marker;
+    private final PickupComponent pickup;
+    private final RigidBodyComponent rigidBody;
+    private final LifespanComponent lifespan;
+    private final List<Component> pipeComponents;
+    private final List<Class<? extends Component>> deliveryTypes;
+
+    public PickupTemplate(Prefab prefab) {
+        this.pickup = prefab.getComponent(PickupComponent.class);
+        this.rigidBody = prefab.getComponent(RigidBodyComponent.class);
+        this.lifespan = prefab.getComponent(LifespanComponent.class);
+        ImmutableList.Builder<Component> pipe = ImmutableList.builder();
+        Set<Class<? extends Component>> types = Sets.newLinkedHashSet(PIPE_TYPES);
+        Component first = null;
+        for (Component component : prefab.iterateComponents()) {
+            if (first == null) {
+                first = component;
+            }
+            types.add(component.getClass());
+            if (component != pickup && component != rigidBody && component != lifespan) {
+                pipe.add(component);
+            }
+        }
+        this.marker = first;
+        this.pipeComponents = pipe.build();
+        this.deliveryTypes = ImmutableList.copyOf(types);
+    }
+
+    /**
+     * @return false if the prefab was reloaded since the template was built from it
+     */
+    public boolean isCurrent(Prefab prefab) {
+        return marker == null || prefab.getComponent(marker.getClass()) == marker;
+    }
+
+    /**
+     * @return copies of the pickup, rigid body and lifespan components, with the pickup marked as dropped at the given time
+     */
+    public List<Component> createPickupComponents(ComponentLibrary library, long timeDropped) {
+        ImmutableList.Builder<Component> components = ImmutableList.builder();
+        if (rigidBody != null) {
+            components.add(library.copy(rigidBody));
+        }
+        if (lifespan != null) {
+            components.add(library.copy(lifespan));
+        }
+        if (pickup != null) {
+            PickupComponent copy = library.copy(pickup);
+            copy.timeDropped = timeDropped;
+            components.add(copy);
+        }
+        return components.build();
+    }
+
+    /**
+     * @return the prefab components an item keeps while it is in a pipe, not copied
+     */
+    public List<Component> getPipeComponents() {
+        return pipeComponents;
+    }
+
+    /**
+     * @return the components to remove from an item that leaves a pipe into an inventory: the pipe components and
+     * everything of the pickup prefab
+     */
+    public List<Class<? extends Component>> getDeliveryTypes() {
+        return deliveryTypes;
+    }
+}
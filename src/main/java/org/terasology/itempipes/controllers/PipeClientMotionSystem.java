@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.itempipes.controllers;
+
+import com.google.common.collect.Maps;
+import org.terasology.engine.Time;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.entity.lifecycleEvents.BeforeDeactivateComponent;
+import org.terasology.entitySystem.event.ReceiveEvent;
+import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterMode;
+import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.entitySystem.systems.UpdateSubscriberSystem;
+import org.terasology.itempipes.event.PipeSegmentEnteredEvent;
+import org.terasology.itempipes.event.PipeSegmentLeftEvent;
+import org.terasology.logic.location.LocationComponent;
+import org.terasology.registry.In;
+import org.terasology.segmentedpaths.SegmentMeta;
+import org.terasology.segmentedpaths.components.PathFollowerComponent;
+import org.terasology.segmentedpaths.controllers.PathFollowerSystem;
+import org.terasology.segmentedpaths.controllers.SegmentCacheSystem;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Moves in-pipe items on clients from the segment entry events the server sends, so item locations do not have to be
+ * replicated every tick.
+ */
+@RegisterSystem(RegisterMode.REMOTE_CLIENT)
+public class PipeClientMotionSystem extends BaseComponentSystem implements UpdateSubscriberSystem {
+    @In
+    private Time time;
+    @In
+    private PathFollowerSystem pathFollowerSystem;
+    @In
+    private SegmentCacheSystem segmentCacheSystem;
+
+    private Map<EntityRef, PipeSegmentEnteredEvent> segments = Maps.newHashMap();
+
+    @ReceiveEvent
+    public void onSegmentEntered(PipeSegmentEnteredEvent event, EntityRef entityRef) {
+        if (event.getSegment() == null || !event.getBlock().exists()) {
+            segments.remove(entityRef);
+            return;
+        }
+        PathFollowerComponent pathFollowerComponent = new PathFollowerComponent();
+        pathFollowerComponent.segmentMeta = new SegmentMeta(event.getDistance(), event.getBlock(), event.getSegment());
+        pathFollowerComponent.segmentMeta.sign = event.getSign();
+        entityRef.addOrSaveComponent(pathFollowerComponent);
+        segments.put(entityRef, event);
+    }
+
+    @ReceiveEvent
+    public void onSegmentLeft(PipeSegmentLeftEvent event, EntityRef entityRef) {
+        segments.remove(entityRef);
+    }
+
+    @ReceiveEvent(components = {LocationComponent.class})
+    public void onItemRemoved(BeforeDeactivateComponent event, EntityRef entityRef) {
+        segments.remove(entityRef);
+    }
+
+    @Override
+    public void update(float delta) {
+        long now = time.getGameTimeInMs();
+        Iterator<Map.Entry<EntityRef, PipeSegmentEnteredEvent>> iterator = segments.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<EntityRef, PipeSegmentEnteredEvent> entry = iterator.next();
+            EntityRef entityRef = entry.getKey();
+            PipeSegmentEnteredEvent segment = entry.getValue();
+            PathFollowerComponent pathFollowerComponent = entityRef.getComponent(PathFollowerComponent.class);
+            LocationComponent locationComponent = entityRef.getComponent(LocationComponent.class);
+            if (pathFollowerComponent == null || locationComponent == null || !segment.getBlock().exists()) {
+                iterator.remove();
+                continue;
+            }
+            // extrapolated along the segment, items wait at its end until the server reports the next one
+            float length = segmentCacheSystem.getSegment(segment.getSegment()).maxDistance();
+            float distance = segment.getDistance() + segment.getSign() * segment.getVelocity() * (now - segment.getServerTime()) / 1000f;
+            pathFollowerComponent.segmentMeta.position = Math.max(0, Math.min(length, distance));
+            locationComponent.setWorldPosition(pathFollowerSystem.vehiclePoint(entityRef));
+            entityRef.saveComponent(locationComponent);
+        }
+    }
+}
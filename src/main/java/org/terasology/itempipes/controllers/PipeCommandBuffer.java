@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.itempipes.controllers;
+
+import com.google.common.collect.Lists;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.event.Event;
+import org.terasology.itempipes.blocks.PipePacketSplit;
+import org.terasology.itempipes.components.PipeFollowingComponent;
+import org.terasology.itempipes.network.PipeStatistics;
+import org.terasology.logic.inventory.ItemComponent;
+import org.terasology.segmentedpaths.SegmentMeta;
+
+import java.util.List;
+
+/**
+ * Collects structural entity changes made while iterating in-pipe items, so they can be applied in one batch
+ * once the iteration is done.
+ */
+public class PipeCommandBuffer {
+    private enum Type {
+        DROP,
+        DESTROY,
+        SPLIT,
+        SEND
+    }
+
+    private static class Command {
+        private final Type type;
+        private final EntityRef entity;
+        private final Object payload;
+
+        Command(Type type, EntityRef entity, Object payload) {
+            this.type = type;
+            this.entity = entity;
+            this.payload = payload;
+        }
+    }
+
+    private final List<Command> commands = Lists.newArrayList();
+
+    public void dropItem(EntityRef actor, PipeStatistics.DropReason reason) {
+        commands.add(new Command(Type.DROP, actor, reason));
+    }
+
+    public void destroy(EntityRef entity) {
+        commands.add(new Command(Type.DESTROY, entity, null));
+    }
+
+    /**
+     * Copies the split's actor with the split's item count onto the split's segment.
+     */
+    public void split(PipePacketSplit split) {
+        commands.add(new Command(Type.SPLIT, split.getActor(), split));
+    }
+
+    public void send(EntityRef target, Event event) {
+        commands.add(new Command(Type.SEND, target, event));
+    }
+
+    public boolean isEmpty() {
+        return commands.isEmpty();
+    }
+
+    public int size() {
+        return commands.size();
+    }
+
+    /**
+     * Applies all buffered commands in the order they were recorded and clears the buffer.
+     */
+    public void apply(PipeSystem pipeSystem) {
+        for (Command command : commands) {
+            if (!command.entity.exists()) {
+                continue;
+            }
+            switch (command.type) {
+                case DROP:
+                    if (command.entity.hasComponent(PipeFollowingComponent.class)) {
+                        pipeSystem.dropItem(command.entity, (PipeStatistics.DropReason) command.payload);
+                    }
+                    break;
+                case DESTROY:
+                    command.entity.destroy();
+                    break;
+                case SPLIT:
+                    applySplit(pipeSystem, command.entity, (PipePacketSplit) command.payload);
+                    break;
+                case SEND:
+                    command.entity.send((Event) command.payload);
+                    break;
+            }
+        }
+        commands.clear();
+    }
+
+    private void applySplit(PipeSystem pipeSystem, EntityRef actor, PipePacketSplit split) {
+        if (!split.getAssociation().exists() || !actor.hasComponent(PipeFollowingComponent.class)
+                || pipeSystem.isFull(split.getAssociation())) {
+            // the split's pipe is gone or has no room for another packet, the split off items stay with the rest
+            ItemComponent itemComponent = actor.getComponent(ItemComponent.class);
+            itemComponent.stackCount = (byte) (itemComponent.stackCount + split.getCount());
+            actor.saveComponent(itemComponent);
+            return;
+        }
+        SegmentMeta segmentMeta = new SegmentMeta(split.getPosition(), split.getAssociation(), split.getPrefab());
+        segmentMeta.sign = split.getSign();
+        pipeSystem.splitItem(actor, split.getCount(), segmentMeta);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2017 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.itempipes.controllers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terasology.engine.Time;
+import org.terasology.engine.paths.PathManager;
+import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterMode;
+import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.entitySystem.systems.UpdateSubscriberSystem;
+import org.terasology.itempipes.network.PipeStatistics;
+import org.terasology.logic.console.commandSystem.annotations.Command;
+import org.terasology.logic.console.commandSystem.annotations.CommandParam;
+import org.terasology.logic.permission.PermissionManager;
+import org.terasology.registry.In;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * Makes the pipe statistics available from the console and optionally appends them to a CSV or JSON lines file in
+ * the log directory at a fixed interval.
+ */
+@RegisterSystem(RegisterMode.AUTHORITY)
+public class PipeMetricsSystem extends BaseComponentSystem implements UpdateSubscriberSystem {
+    private static final Logger logger = LoggerFactory.getLogger(PipeMetricsSystem.class);
+
+    private enum Format {
+        CSV, JSON
+    }
+
+    @In
+    private Time time;
+    @In
+    private PipeSystem pipeSystem;
+
+    private Format format;
+    private BufferedWriter writer;
+    private float interval;
+    private float timer;
+
+    @Command(shortDescription = "Shows what the item pipes have been doing since the last reset",
+            runOnServer = true, requiredPermission = PermissionManager.DEBUG_PERMISSION)
+    public String pipeStats() {
+        PipeStatistics statistics = pipeSystem.getStatistics();
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.ENGLISH, "updates %d, avg %.3f ms, max %.3f ms, last %.3f ms%n",
+                statistics.getUpdates(), statistics.getAverageUpdateMillis(), statistics.getMaxUpdateMillis(), statistics.getLastUpdateMillis()));
+        builder.append(String.format(Locale.ENGLISH, "in transit %d, hops %d, mapping events %d%n",
+                statistics.getItemsInTransit(), statistics.getHops(), statistics.getMappingEvents()));
+        builder.append(String.format(Locale.ENGLISH, "inserted %d, insert failures %d, delivered %d, delivery failures %d%n",
+                statistics.getInserted(), statistics.getInsertFailures(), statistics.getDelivered(), statistics.getDeliveryFailures()));
+        builder.append("dropped ").append(statistics.getDropped());
+        for (PipeStatistics.DropReason reason : PipeStatistics.DropReason.values()) {
+            builder.append(", ").append(reason.name().toLowerCase(Locale.ENGLISH)).append(' ').append(statistics.getDropped(reason));
+        }
+        return builder.toString();
+    }
+
+    @Command(shortDescription = "Resets the item pipe statistics",
+            runOnServer = true, requiredPermission = PermissionManager.DEBUG_PERMISSION)
+    public String pipeStatsReset() {
+        pipeSystem.getStatistics().reset();
+        return "Pipe statistics reset";
+    }
+
+    @Command(shortDescription = "Periodically appends the item pipe statistics to a file in the log directory",
+            helpText = "Format is csv, json or off, the interval is in seconds.",
+            runOnServer = true, requiredPermission = PermissionManager.DEBUG_PERMISSION)
+    public String pipeStatsFile(@CommandParam("format") String format, @CommandParam("interval") float interval) {
+        close();
+        if ("off".equalsIgnoreCase(format)) {
+            return "Pipe statistics file disabled";
+        }
+        Format selected;
+        try {
+            selected = Format.valueOf(format.toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            return "Unknown format " + format + ", expected csv, json or off";
+        }
+        Path path = PathManager.getInstance().getLogPath().resolve("itempipes-metrics." + selected.name().toLowerCase(Locale.ENGLISH));
+        try {
+            boolean empty = !Files.exists(path) || Files.size(path) == 0;
+            writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            if (empty && selected == Format.CSV) {
+                writer.write(csvHeader());
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            close();
+            return "Unable to open " + path + ": " + e.getMessage();
+        }
+        this.format = selected;
+        this.interval = Math.max(.1f, interval);
+        this.timer = 0;
+        return "Writing pipe statistics to " + path + " every " + this.interval + "s";
+    }
+
+    @Override
+    public void update(float delta) {
+        if (writer == null) {
+            return;
+        }
+        timer += delta;
+        if (timer < interval) {
+            return;
+        }
+        timer = 0;
+        try {
+            writer.write(format == Format.CSV ? csvLine() : jsonLine());
+            writer.newLine();
+            writer.flush();
+        } catch (IOException e) {
+            logger.warn("Unable to write pipe statistics", e);
+            close();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        close();
+    }
+
+    private void close() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                logger.warn("Unable to close pipe statistics file", e);
+            }
+            writer = null;
+        }
+    }
+
+    private String csvHeader() {
+        StringBuilder builder = new StringBuilder("time,updates,updateAvgMs,updateMaxMs,inTransit,hops,mappingEvents,inserted,insertFailures,delivered,deliveryFailures");
+        for (PipeStatistics.DropReason reason : PipeStatistics.DropReason.values()) {
+            builder.append(",drop_").append(reason.name().toLowerCase(Locale.ENGLISH));
+        }
+        return builder.toString();
+    }
+
+    private String csvLine() {
+        PipeStatistics statistics = pipeSystem.getStatistics();
+        StringBuilder builder = new StringBuilder(String.format(Locale.ENGLISH, "%d,%d,%.4f,%.4f,%d,%d,%d,%d,%d,%d,%d",
+                time.getGameTimeInMs(), statistics.getUpdates(), statistics.getAverageUpdateMillis(), statistics.getMaxUpdateMillis(),
+                statistics.getItemsInTransit(), statistics.getHops(), statistics.getMappingEvents(), statistics.getInserted(),
+                statistics.getInsertFailures(), statistics.getDelivered(), statistics.getDeliveryFailures()));
+        for (PipeStatistics.DropReason reason : PipeStatistics.DropReason.values()) {
+            builder.append(',').append(statistics.getDropped(reason));
+        }
+        return builder.toString();
+    }
+
+    private String jsonLine() {
+        PipeStatistics statistics = pipeSystem.getStatistics();
+        StringBuilder builder = new StringBuilder(String.format(Locale.ENGLISH,
+                "{\"time\":%d,\"updates\":%d,\"updateAvgMs\":%.4f,\"updateMaxMs\":%.4f,\"inTransit\":%d,\"hops\":%d,\"mappingEvents\":%d,"
+                        + "\"inserted\":%d,\"insertFailures\":%d,\"delivered\":%d,\"deliveryFailures\":%d,\"drops\":{",
+                time.getGameTimeInMs(), statistics.getUpdates(), statistics.getAverageUpdateMillis(), statistics.getMaxUpdateMillis(),
+                statistics.getItemsInTransit(), statistics.getHops(), statistics.getMappingEvents(), statistics.getInserted(),
+                statistics.getInsertFailures(), statistics.getDelivered(), statistics.getDeliveryFailures()));
+        for (PipeStatistics.DropReason reason : PipeStatistics.DropReason.values()) {
+            if (reason.ordinal() > 0) {
+                builder.append(',');
+            }
+            builder.append('"').append(reason.name().toLowerCase(Locale.ENGLISH)).append("\":").append(statistics.getDropped(reason));
+        }
+        return builder.append("}}").toString();
+    }
+}
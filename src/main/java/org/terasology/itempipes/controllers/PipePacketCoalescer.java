@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.itempipes.controllers;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.logic.inventory.ItemComponent;
+import org.terasology.segmentedpaths.SegmentMeta;
+import org.terasology.segmentedpaths.components.PathFollowerComponent;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges identical items that travel close together on the same segment into a single stacked packet entity.
+ */
+public class PipePacketCoalescer {
+    private float spacing = .25f;
+
+    public float getSpacing() {
+        return spacing;
+    }
+
+    /**
+     * @param spacing the maximum distance along a segment between two items that are merged
+     */
+    public void setSpacing(float spacing) {
+        this.spacing = spacing;
+    }
+
+    /**
+     * @return the number of items that were merged into another packet
+     */
+    public int coalesce(Iterable<EntityRef> items, PipeCommandBuffer commandBuffer) {
+        Map<EntityRef, List<EntityRef>> itemsByBlock = Maps.newHashMap();
+        for (EntityRef item : items) {
+            PathFollowerComponent pathFollowerComponent = item.getComponent(PathFollowerComponent.class);
+            if (pathFollowerComponent == null || pathFollowerComponent.segmentMeta == null || !item.hasComponent(ItemComponent.class)) {
+                continue;
+            }
+            itemsByBlock.computeIfAbsent(pathFollowerComponent.segmentMeta.association, k -> Lists.newArrayList()).add(item);
+        }
+
+        int merged = 0;
+        for (List<EntityRef> group : itemsByBlock.values()) {
+            if (group.size() < 2) {
+                continue;
+            }
+            for (int i = 0; i < group.size(); i++) {
+                EntityRef target = group.get(i);
+                if (target == null) {
+                    continue;
+                }
+                ItemComponent targetItem = target.getComponent(ItemComponent.class);
+                SegmentMeta targetMeta = target.getComponent(PathFollowerComponent.class).segmentMeta;
+                boolean changed = false;
+                for (int j = i + 1; j < group.size(); j++) {
+                    EntityRef other = group.get(j);
+                    if (other == null) {
+                        continue;
+                    }
+                    ItemComponent otherItem = other.getComponent(ItemComponent.class);
+                    SegmentMeta otherMeta = other.getComponent(PathFollowerComponent.class).segmentMeta;
+                    if (canMerge(targetItem, targetMeta, otherItem, otherMeta)) {
+                        targetItem.stackCount += otherItem.stackCount;
+                        group.set(j, null);
+                        commandBuffer.destroy(other);
+                        changed = true;
+                        merged++;
+                    }
+                }
+                if (changed) {
+                    target.saveComponent(targetItem);
+                }
+            }
+        }
+        return merged;
+    }
+
+    private boolean canMerge(ItemComponent targetItem, SegmentMeta targetMeta, ItemComponent otherItem, SegmentMeta otherMeta) {
+        return targetMeta.prefab == otherMeta.prefab
+                && targetMeta.sign == otherMeta.sign
+                && Math.abs(targetMeta.position - otherMeta.position) <= spacing
+                && !targetItem.stackId.isEmpty()
+                && targetItem.stackId.equals(otherItem.stackId)
+                && targetItem.stackCount + otherItem.stackCount <= targetItem.maxStackSize;
+    }
+}
@@ -18,23 +18,35 @@ package org.terasology.itempipes.controllers;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import org.terasology.engine.Time;
+import org.terasology.entitySystem.Component;
+import org.terasology.entitySystem.entity.EntityBuilder;
+import org.terasology.entitySystem.entity.EntityManager;
 import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.entity.lifecycleEvents.BeforeDeactivateComponent;
+import org.terasology.entitySystem.entity.lifecycleEvents.OnActivatedComponent;
+import org.terasology.entitySystem.event.ReceiveEvent;
+import org.terasology.entitySystem.metadata.ComponentLibrary;
 import org.terasology.entitySystem.prefab.Prefab;
 import org.terasology.entitySystem.systems.BaseComponentSystem;
 import org.terasology.entitySystem.systems.RegisterMode;
 import org.terasology.entitySystem.systems.RegisterSystem;
 import org.terasology.itempipes.blocks.PipeBlockFamily;
+import org.terasology.itempipes.blocks.PipeShape;
+import org.terasology.itempipes.components.PipeComponent;
+import org.terasology.itempipes.components.PipeConnectionComponent;
 import org.terasology.itempipes.components.PipeFollowingComponent;
-import org.terasology.logic.common.lifespan.LifespanComponent;
+import org.terasology.itempipes.network.PipeNetwork;
+import org.terasology.itempipes.network.PipeNode;
+import org.terasology.itempipes.network.PipeRouter;
+import org.terasology.itempipes.network.PipeStatistics;
 import org.terasology.logic.inventory.ItemComponent;
-import org.terasology.logic.inventory.PickupComponent;
 import org.terasology.logic.location.LocationComponent;
 import org.terasology.math.Rotation;
 import org.terasology.math.Side;
+import org.terasology.math.SideBitFlag;
 import org.terasology.math.geom.Quat4f;
 import org.terasology.math.geom.Vector3f;
 import org.terasology.math.geom.Vector3i;
-import org.terasology.physics.components.RigidBodyComponent;
 import org.terasology.registry.In;
 import org.terasology.registry.Share;
 import org.terasology.segmentedpaths.SegmentMeta;
@@ -46,21 +58,32 @@ import org.terasology.segmentedpaths.controllers.SegmentCacheSystem;
 import org.terasology.segmentedpaths.controllers.SegmentSystem;
 import org.terasology.segmentedpaths.segments.Segment;
 import org.terasology.world.BlockEntityRegistry;
+import org.terasology.world.OnChangedBlock;
 import org.terasology.world.WorldProvider;
 import org.terasology.world.block.Block;
 import org.terasology.world.block.BlockComponent;
 import org.terasology.world.block.family.BlockFamily;
 
-import java.util.EnumSet;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 
 @RegisterSystem(RegisterMode.AUTHORITY)
 @Share(value = PipeSystem.class)
 public class PipeSystem extends BaseComponentSystem {
+    /**
+     * The most paths a pipe block can have, one for every pair of its six sides.
+     */
+    public static final int MAX_PATH_COUNT = 15;
+    private static final Side[] SIDES = Side.values();
+
     @In
     private Time time;
     @In
+    private EntityManager entityManager;
+    @In
     private WorldProvider worldProvider;
     @In
     private BlockEntityRegistry blockEntityRegistry;
@@ -69,28 +92,216 @@ public class PipeSystem extends BaseComponentSystem {
     @In
     private SegmentCacheSystem segmentCacheSystem;
 
+    private PipeNetwork network = new PipeNetwork();
+    private PipeRouter router = new PipeRouter(network);
+    private PipeStatistics statistics = new PipeStatistics();
+    private Map<Prefab, PickupTemplate> pickupTemplates = Maps.newHashMap();
+    private Vector3i neighborLocation = new Vector3i();
 
-    public boolean isConnected(Vector3i location, Side side) {
-        Vector3i toTest = location.add(side.getVector3i());
-        if (worldProvider.isBlockRelevant(toTest)) {
-            Block block = worldProvider.getBlock(toTest);
-            final BlockFamily blockFamily = block.getBlockFamily();
-            EntityRef pipeEntity = blockEntityRegistry.getBlockEntityAt(toTest);
-            if (blockFamily instanceof PipeBlockFamily) {
-                PathDescriptorComponent pathDescriptor = pipeEntity.getComponent(PathDescriptorComponent.class);
-                EnumSet<Side> sides = ((PipeBlockFamily) blockFamily).getSides(block.getURI());
-                for (Side s : sides) {
-                    if (s.reverse().equals(side)) {
-                        return true;
+    public PipeNetwork getNetwork() {
+        return network;
+    }
+
+    public PipeRouter getRouter() {
+        return router;
+    }
+
+    public PipeStatistics getStatistics() {
+        return statistics;
+    }
+
+    public PickupTemplate getPickupTemplate(Prefab pickupPrefab) {
+        PickupTemplate template = pickupTemplates.get(pickupPrefab);
+        if (template == null || !template.isCurrent(pickupPrefab)) {
+            template = new PickupTemplate(pickupPrefab);
+            pickupTemplates.put(pickupPrefab, template);
+        }
+        return template;
+    }
+
+    @Override
+    public void shutdown() {
+        pickupTemplates.clear();
+    }
+
+    /**
+     * Places a pipe run along a polyline of axis aligned segments, the corners included.
+     */
+    public void placePipeRun(PipeBlockFamily family, List<Vector3i> polyline) {
+        Set<Vector3i> positions = Sets.newLinkedHashSet();
+        for (int i = 0; i < polyline.size(); i++) {
+            Vector3i current = new Vector3i(polyline.get(i));
+            positions.add(new Vector3i(current));
+            if (i + 1 == polyline.size()) {
+                break;
+            }
+            Vector3i target = polyline.get(i + 1);
+            int axes = (current.x != target.x ? 1 : 0) + (current.y != target.y ? 1 : 0) + (current.z != target.z ? 1 : 0);
+            if (axes > 1) {
+                throw new IllegalArgumentException("Pipe run segment is not axis aligned: " + current + " to " + target);
+            }
+            while (!current.equals(target)) {
+                current.add(Integer.signum(target.x - current.x), Integer.signum(target.y - current.y), Integer.signum(target.z - current.z));
+                positions.add(new Vector3i(current));
+            }
+        }
+        placePipes(family, positions);
+    }
+
+    /**
+     * Places pipes of the family at all positions in a single world update. Every block gets its final connections
+     * up front, including existing pipes next to the new ones, so no intermediate shapes are written.
+     */
+    public void placePipes(PipeBlockFamily family, Collection<Vector3i> positions) {
+        Set<Vector3i> placed = Sets.newHashSet(positions);
+        placed.removeIf(position -> !worldProvider.isBlockRelevant(position));
+        Map<Vector3i, Boolean> connectable = Maps.newHashMap();
+        Map<Vector3i, Block> blocks = Maps.newHashMap();
+        Vector3i neighbor = new Vector3i();
+        for (Vector3i position : placed) {
+            blocks.put(position, family.getBlock(getConnections(position, placed, connectable)));
+            for (Side side : Side.values()) {
+                neighbor.set(position);
+                neighbor.add(side.getVector3i());
+                if (placed.contains(neighbor) || blocks.containsKey(neighbor) || !worldProvider.isBlockRelevant(neighbor)) {
+                    continue;
+                }
+                Block block = worldProvider.getBlock(neighbor);
+                if (block.getBlockFamily() instanceof PipeBlockFamily) {
+                    Vector3i location = new Vector3i(neighbor);
+                    Block updated = ((PipeBlockFamily) block.getBlockFamily()).getBlock(getConnections(location, placed, connectable));
+                    if (updated != null && updated != block) {
+                        blocks.put(location, updated);
                     }
                 }
             }
         }
+        blocks.values().removeIf(Objects::isNull);
+        worldProvider.setBlocks(blocks);
+    }
+
+    private byte getConnections(Vector3i position, Set<Vector3i> placed, Map<Vector3i, Boolean> connectable) {
+        byte connections = 0;
+        for (Side side : Side.values()) {
+            Vector3i neighbor = new Vector3i(position);
+            neighbor.add(side.getVector3i());
+            if (placed.contains(neighbor)
+                    || connectable.computeIfAbsent(neighbor, k -> PipeBlockFamily.isConnectable(k, worldProvider, blockEntityRegistry))) {
+                connections |= SideBitFlag.getSide(side);
+            }
+        }
+        return connections;
+    }
+
+    @ReceiveEvent(components = {PipeComponent.class, BlockComponent.class})
+    public void onPipeActivated(OnActivatedComponent event, EntityRef entity) {
+        updateNode(entity, entity.getComponent(BlockComponent.class).getBlock());
+    }
+
+    @ReceiveEvent(components = {PipeConnectionComponent.class, BlockComponent.class})
+    public void onConnectionActivated(OnActivatedComponent event, EntityRef entity) {
+        updateNode(entity, entity.getComponent(BlockComponent.class).getBlock());
+    }
+
+    @ReceiveEvent(components = {BlockComponent.class})
+    public void onBlockChanged(OnChangedBlock event, EntityRef entity) {
+        if (entity.hasComponent(PipeComponent.class) || entity.hasComponent(PipeConnectionComponent.class)
+                || network.getNode(event.getBlockPosition()) != null) {
+            updateNode(entity, event.getNewType());
+        }
+    }
+
+    @ReceiveEvent(components = {PipeComponent.class, BlockComponent.class})
+    public void onPipeDeactivated(BeforeDeactivateComponent event, EntityRef entity) {
+        network.remove(entity.getComponent(BlockComponent.class).getPosition());
+    }
+
+    @ReceiveEvent(components = {PipeConnectionComponent.class, BlockComponent.class})
+    public void onConnectionDeactivated(BeforeDeactivateComponent event, EntityRef entity) {
+        network.remove(entity.getComponent(BlockComponent.class).getPosition());
+    }
+
+    @ReceiveEvent(components = {PipeFollowingComponent.class, PathFollowerComponent.class})
+    public void onItemEntered(OnActivatedComponent event, EntityRef entity) {
+        statistics.itemsInTransit(1);
+        changeItemCount(entity, 1);
+    }
+
+    @ReceiveEvent(components = {PipeFollowingComponent.class, PathFollowerComponent.class})
+    public void onItemLeft(BeforeDeactivateComponent event, EntityRef entity) {
+        statistics.itemsInTransit(-1);
+        changeItemCount(entity, -1);
+    }
+
+    private void changeItemCount(EntityRef item, int count) {
+        PathFollowerComponent pathFollowerComponent = item.getComponent(PathFollowerComponent.class);
+        if (pathFollowerComponent.segmentMeta == null) {
+            return;
+        }
+        BlockComponent blockComponent = pathFollowerComponent.segmentMeta.association.getComponent(BlockComponent.class);
+        if (blockComponent != null) {
+            PipeNode node = network.getNode(blockComponent.getPosition());
+            if (node != null) {
+                node.addItems(count);
+            }
+        }
+    }
+
+    private void updateNode(EntityRef entity, Block block) {
+        Vector3i position = entity.getComponent(BlockComponent.class).getPosition();
+        BlockFamily blockFamily = block.getBlockFamily();
+        if (blockFamily instanceof PipeBlockFamily && entity.hasComponent(PipeComponent.class)) {
+            PipeShape shape = ((PipeBlockFamily) blockFamily).getShape(block);
+            if (shape != null) {
+                PipeNode node = network.addOrUpdate(position, entity, block, shape.getConnections(), true);
+                node.setCapacity(entity.getComponent(PipeComponent.class).capacity);
+                return;
+            }
+        } else if (entity.hasComponent(PipeConnectionComponent.class)) {
+            PipeConnectionComponent connectionComponent = entity.getComponent(PipeConnectionComponent.class);
+            byte sides = connectionComponent.sides == null ? (byte) 63 : SideBitFlag.getSides(connectionComponent.sides);
+            network.addOrUpdate(position, entity, block, sides, false);
+            return;
+        }
+        network.remove(position);
+    }
+
+    public PipeShape getShape(Block block) {
+        BlockFamily blockFamily = block.getBlockFamily();
+        if (blockFamily instanceof PipeBlockFamily) {
+            return ((PipeBlockFamily) blockFamily).getShape(block);
+        }
+        return null;
+    }
+
+    public boolean isConnected(Vector3i location, Side side) {
+        neighborLocation.set(location);
+        neighborLocation.add(side.getVector3i());
+        if (worldProvider.isBlockRelevant(neighborLocation)) {
+            Block block = worldProvider.getBlock(neighborLocation);
+            PipeShape shape = getShape(block);
+            if (shape != null) {
+                return shape.hasSide(side.reverse());
+            }
+        }
         return false;
     }
 
 
     public Set<Prefab> findingMatchingPathPrefab(EntityRef pipe, Side side) {
+        BlockComponent blockComponent = pipe.getComponent(BlockComponent.class);
+        PipeShape shape = blockComponent == null ? null : getShape(blockComponent.getBlock());
+        if (shape != null) {
+            Set<Prefab> results = Sets.newHashSet();
+            byte sideFlag = SideBitFlag.getSide(side);
+            for (int i = 0; i < shape.getPathCount(); i++) {
+                if ((shape.getPathSides(i) & sideFlag) != 0) {
+                    results.add(shape.getPath(i));
+                }
+            }
+            return results;
+        }
+
         PathDescriptorComponent pathDescriptor = pipe.getComponent(PathDescriptorComponent.class);
         Quat4f rotation = segmentSystem.segmentRotation(pipe);
         Set<Prefab> results = Sets.newHashSet();
@@ -105,6 +316,78 @@ public class PipeSystem extends BaseComponentSystem {
         return results;
     }
 
+    /**
+     * Writes the paths of the pipe that end at the given side into the array, without allocating.
+     *
+     * @param results scratch array, {@link #MAX_PATH_COUNT} entries hold every path of a pipe block
+     * @return the number of paths written; matches beyond the length of the array are left out
+     */
+    public int findMatchingPathPrefabs(EntityRef pipe, Side side, Prefab[] results) {
+        BlockComponent blockComponent = pipe.getComponent(BlockComponent.class);
+        PipeShape shape = blockComponent == null ? null : getShape(blockComponent.getBlock());
+        int count = 0;
+        if (shape != null) {
+            byte sideFlag = SideBitFlag.getSide(side);
+            for (int i = 0; i < shape.getPathCount() && count < results.length; i++) {
+                if ((shape.getPathSides(i) & sideFlag) != 0) {
+                    results[count++] = shape.getPath(i);
+                }
+            }
+            return count;
+        }
+
+        PathDescriptorComponent pathDescriptor = pipe.getComponent(PathDescriptorComponent.class);
+        if (pathDescriptor == null) {
+            return 0;
+        }
+        Quat4f rotation = segmentSystem.segmentRotation(pipe);
+        for (Prefab path : pathDescriptor.descriptors) {
+            if (count == results.length) {
+                break;
+            }
+            BlockMappingComponent blockMappingComponent = path.getComponent(BlockMappingComponent.class);
+            Side s1 = Side.inDirection(rotation.rotate(blockMappingComponent.s1.getVector3i().toVector3f()));
+            Side s2 = Side.inDirection(rotation.rotate(blockMappingComponent.s2.getVector3i().toVector3f()));
+            if (s1 == side || s2 == side) {
+                results[count++] = path;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Keeps the first count prefabs that end at the given side once rotated, moving them to the front of the array.
+     *
+     * @return the number of prefabs kept
+     */
+    public int filterPrefabBySide(Rotation rotation, Prefab[] prefabs, int count, Side side) {
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            BlockMappingComponent blockMappingComponent = prefabs[i].getComponent(BlockMappingComponent.class);
+            if (rotation.rotate(blockMappingComponent.s1) == side || rotation.rotate(blockMappingComponent.s2) == side) {
+                prefabs[kept++] = prefabs[i];
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Keeps the first count prefabs that are paths of the shape ending at the given side, moving them to the front of the array.
+     *
+     * @return the number of prefabs kept
+     */
+    public int filterPrefabBySide(PipeShape shape, Prefab[] prefabs, int count, Side side) {
+        int kept = 0;
+        byte sideFlag = SideBitFlag.getSide(side);
+        for (int i = 0; i < count; i++) {
+            int index = shape.indexOf(prefabs[i]);
+            if (index >= 0 && (shape.getPathSides(index) & sideFlag) != 0) {
+                prefabs[kept++] = prefabs[i];
+            }
+        }
+        return kept;
+    }
+
     public Set<Prefab> filterPrefabBySide(Rotation rotation, Set<Prefab> prefabs, Side side) {
         Set<Prefab> result = Sets.newHashSet();
         for (Prefab prefab : prefabs) {
@@ -119,6 +402,18 @@ public class PipeSystem extends BaseComponentSystem {
         return result;
     }
 
+    public Set<Prefab> filterPrefabBySide(PipeShape shape, Set<Prefab> prefabs, Side side) {
+        Set<Prefab> result = Sets.newHashSet();
+        byte sideFlag = SideBitFlag.getSide(side);
+        for (Prefab prefab : prefabs) {
+            int index = shape.indexOf(prefab);
+            if (index >= 0 && (shape.getPathSides(index) & sideFlag) != 0) {
+                result.add(prefab);
+            }
+        }
+        return result;
+    }
+
 
     public Segment getSegment(Prefab prefab) {
         return segmentCacheSystem.getSegment(prefab);
@@ -128,38 +423,178 @@ public class PipeSystem extends BaseComponentSystem {
     public Map<Side, EntityRef> findPipes(Vector3i location) {
         Map<Side, EntityRef> pipes = Maps.newHashMap();
         for (Side side : Side.values()) {
-            Vector3i neighborLocation = new Vector3i(location);
-            neighborLocation.add(side.getVector3i());
-            if (worldProvider.isBlockRelevant(neighborLocation)) {
-                Block neighborBlock = worldProvider.getBlock(neighborLocation);
-                final BlockFamily blockFamily = neighborBlock.getBlockFamily();
-                if (blockFamily instanceof PipeBlockFamily) {
-                    pipes.put(side, blockEntityRegistry.getBlockEntityAt(neighborLocation));
-                }
+            PipeNode node = network.getNeighbor(location, side);
+            if (node != null && node.isPipe()) {
+                pipes.put(side, node.getEntity());
             }
         }
         return pipes;
     }
 
+    /**
+     * Looks up the pipes next to a location without allocating.
+     *
+     * @param pipes scratch array of six entries indexed by {@link Side#ordinal()}, sides without a pipe are set to {@link EntityRef#NULL}
+     * @return bitmask of the sides that have a pipe, see {@link SideBitFlag}
+     */
+    public byte findPipes(Vector3i location, EntityRef[] pipes) {
+        return findPipes(location, pipes, false);
+    }
+
+    /**
+     * Like {@link #findPipes(Vector3i, EntityRef[])}, but leaves out pipes that cannot take another item.
+     */
+    public byte findFreePipes(Vector3i location, EntityRef[] pipes) {
+        return findPipes(location, pipes, true);
+    }
+
+    private byte findPipes(Vector3i location, EntityRef[] pipes, boolean free) {
+        byte sides = 0;
+        for (Side side : SIDES) {
+            PipeNode node = network.getNeighbor(location, side);
+            if (node != null && node.isPipe() && !(free && node.isFull())) {
+                pipes[side.ordinal()] = node.getEntity();
+                sides |= SideBitFlag.getSide(side);
+            } else {
+                pipes[side.ordinal()] = EntityRef.NULL;
+            }
+        }
+        return sides;
+    }
+
+    /**
+     * @return true if the pipe cannot take any more items right now
+     */
+    public boolean isFull(EntityRef pipe) {
+        BlockComponent blockComponent = pipe.getComponent(BlockComponent.class);
+        if (blockComponent == null) {
+            return false;
+        }
+        PipeNode node = network.getNode(blockComponent.getPosition());
+        return node != null && node.isFull();
+    }
+
+    /**
+     * @return true if at least one pipe next to the location can take another item
+     */
+    public boolean hasFreePipe(Vector3i location) {
+        for (Side side : SIDES) {
+            PipeNode node = network.getNeighbor(location, side);
+            if (node != null && node.isPipe() && !node.isFull()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gives an item that is not a pickup, for example one taken out of an inventory, what it needs to be rendered and
+     * moved along a pipe: the parts of its pickup prefab apart from pickup and physics, and a location.
+     */
+    public void prepareForPipe(EntityRef item, Vector3f position) {
+        ItemComponent itemComponent = item.getComponent(ItemComponent.class);
+        if (itemComponent.pickupPrefab != null) {
+            for (Component component : getPickupTemplate(itemComponent.pickupPrefab).getPipeComponents()) {
+                if (!item.hasComponent(component.getClass())) {
+                    item.addComponent(entityManager.getComponentLibrary().copy(component));
+                }
+            }
+        }
+        LocationComponent locationComponent = item.getComponent(LocationComponent.class);
+        if (locationComponent == null) {
+            locationComponent = new LocationComponent();
+            locationComponent.setWorldPosition(position);
+            item.addComponent(locationComponent);
+        } else {
+            locationComponent.setWorldPosition(position);
+            item.saveComponent(locationComponent);
+        }
+    }
+
+    /**
+     * Undoes {@link #prepareForPipe} for an item that did not get into a pipe, so it can go back into an inventory.
+     */
+    public void revertPrepareForPipe(EntityRef item) {
+        ItemComponent itemComponent = item.getComponent(ItemComponent.class);
+        Prefab prefab = itemComponent == null ? null : itemComponent.pickupPrefab;
+        removeComponents(item, prefab == null ? PickupTemplate.PIPE_TYPES : getPickupTemplate(prefab).getDeliveryTypes());
+        if (item.hasComponent(LocationComponent.class)) {
+            item.removeComponent(LocationComponent.class);
+        }
+    }
+
+    /**
+     * Takes an item out of the pipe it travels in without turning it back into a pickup.
+     */
+    public void leavePipe(EntityRef actor) {
+        removeComponents(actor, PickupTemplate.PIPE_TYPES);
+    }
+
+    /**
+     * Strips a batch of items delivered to an inventory of everything they only needed in the pipe or as a pickup. The
+     * removal list is looked up once per run of items with the same pickup prefab.
+     */
+    public void leavePipes(List<EntityRef> items) {
+        Prefab listPrefab = null;
+        List<Class<? extends Component>> types = PickupTemplate.PIPE_TYPES;
+        for (EntityRef item : items) {
+            if (!item.exists()) {
+                continue;
+            }
+            ItemComponent itemComponent = item.getComponent(ItemComponent.class);
+            Prefab prefab = itemComponent == null ? null : itemComponent.pickupPrefab;
+            if (prefab != listPrefab) {
+                types = prefab == null ? PickupTemplate.PIPE_TYPES : getPickupTemplate(prefab).getDeliveryTypes();
+                listPrefab = prefab;
+            }
+            removeComponents(item, types);
+        }
+    }
+
+    /**
+     * Copies part of an in-pipe packet onto another segment. The copy gets its item count and segment before it is
+     * created, so it is counted in and tracked for the block it really is in.
+     */
+    public EntityRef splitItem(EntityRef actor, int count, SegmentMeta segmentMeta) {
+        ComponentLibrary library = entityManager.getComponentLibrary();
+        EntityBuilder builder = entityManager.newBuilder();
+        for (Component component : actor.iterateComponents()) {
+            builder.addComponent(library.copy(component));
+        }
+        builder.getComponent(ItemComponent.class).stackCount = (byte) count;
+        builder.getComponent(PathFollowerComponent.class).segmentMeta = segmentMeta;
+        return builder.build();
+    }
+
     public void dropItem(EntityRef actor) {
+        dropItem(actor, PipeStatistics.DropReason.OTHER);
+    }
+
+    public void dropItem(EntityRef actor, PipeStatistics.DropReason reason) {
         ItemComponent itemComponent = actor.getComponent(ItemComponent.class);
 
         Prefab prefab = itemComponent.pickupPrefab;
-        PickupComponent pickupComponent = prefab.getComponent(PickupComponent.class);
-        pickupComponent.timeDropped = time.getGameTimeInMs();
-        RigidBodyComponent rigidBodyComponent = prefab.getComponent(RigidBodyComponent.class);
-        LifespanComponent lifespanComponent = prefab.getComponent(LifespanComponent.class);
-
-        actor.addComponent(rigidBodyComponent);
-        actor.addComponent(lifespanComponent);
-        actor.addComponent(pickupComponent);
+        if (prefab != null) {
+            for (Component component : getPickupTemplate(prefab).createPickupComponents(entityManager.getComponentLibrary(), time.getGameTimeInMs())) {
+                actor.addOrSaveComponent(component);
+            }
+        }
 
-        actor.removeComponent(PipeFollowingComponent.class);
-        actor.removeComponent(PathFollowerComponent.class);
+        leavePipe(actor);
+        statistics.dropped(reason);
     }
 
 
     public boolean insertIntoPipe(EntityRef actor, EntityRef pipe, Side side, Prefab prefab, float velocity) {
+        if (enterPipe(actor, pipe, side, prefab, velocity)) {
+            statistics.inserted();
+            return true;
+        }
+        statistics.insertFailed();
+        return false;
+    }
+
+    private boolean enterPipe(EntityRef actor, EntityRef pipe, Side side, Prefab prefab, float velocity) {
         if (actor.hasComponent(PipeFollowingComponent.class))
             return false;
         if(!actor.hasComponent(ItemComponent.class))
@@ -168,40 +603,64 @@ public class PipeSystem extends BaseComponentSystem {
         BlockComponent blockComponent = pipe.getComponent(BlockComponent.class);
         if (blockComponent == null)
             return false;
+        PipeNode node = network.getNode(blockComponent.getPosition());
+        if (node != null && node.isFull())
+            return false;
         Block block = blockComponent.getBlock();
         BlockFamily family = block.getBlockFamily();
-        if (family instanceof PathFamily) {
+        Side start;
+        Side end;
+        PipeShape shape = getShape(block);
+        if (shape != null) {
+            int index = shape.indexOf(prefab);
+            if (index < 0)
+                return false;
+            start = shape.getStart(index);
+            end = shape.getEnd(index);
+        } else if (family instanceof PathFamily) {
             BlockMappingComponent blockMappingComponent = prefab.getComponent(BlockMappingComponent.class);
             if (blockMappingComponent == null)
                 return false;
             Rotation rotation = ((PathFamily) family).getRotationFor(block.getURI());
-            PathFollowerComponent pathFollowerComponent = new PathFollowerComponent();
-            if (rotation.rotate(blockMappingComponent.s1).equals(side)) {
-                pathFollowerComponent.segmentMeta = new SegmentMeta(0, pipe, prefab);
-                pathFollowerComponent.segmentMeta.sign = 1;
-            } else if (rotation.rotate(blockMappingComponent.s2).equals(side)) {
-                Segment segment = segmentCacheSystem.getSegment(prefab);
-                pathFollowerComponent.segmentMeta = new SegmentMeta(segment.maxDistance(), pipe, prefab);
-                pathFollowerComponent.segmentMeta.sign = -1;
-            } else {
-                return false;
-            }
-            PipeFollowingComponent pipeFollowingComponent = new PipeFollowingComponent();
-            pipeFollowingComponent.velocity = Math.abs(velocity);
+            start = rotation.rotate(blockMappingComponent.s1);
+            end = rotation.rotate(blockMappingComponent.s2);
+        } else {
+            return false;
+        }
+        PathFollowerComponent pathFollowerComponent = new PathFollowerComponent();
+        if (start == side) {
+            pathFollowerComponent.segmentMeta = new SegmentMeta(0, pipe, prefab);
+            pathFollowerComponent.segmentMeta.sign = 1;
+        } else if (end == side) {
+            Segment segment = segmentCacheSystem.getSegment(prefab);
+            pathFollowerComponent.segmentMeta = new SegmentMeta(segment.maxDistance(), pipe, prefab);
+            pathFollowerComponent.segmentMeta.sign = -1;
+        } else {
+            return false;
+        }
+        PipeFollowingComponent pipeFollowingComponent = new PipeFollowingComponent();
+        pipeFollowingComponent.velocity = Math.abs(velocity);
 
-            LocationComponent locationComponent = actor.getComponent(LocationComponent.class);
-            locationComponent.setWorldRotation(new Quat4f(Vector3f.up(), 0));
+        LocationComponent locationComponent = actor.getComponent(LocationComponent.class);
+        locationComponent.setWorldRotation(new Quat4f(Vector3f.up(), 0));
 
-            actor.saveComponent(locationComponent);
-            actor.addOrSaveComponent(pathFollowerComponent);
-            actor.addComponent(pipeFollowingComponent);
+        actor.saveComponent(locationComponent);
+        actor.addOrSaveComponent(pathFollowerComponent);
+        actor.addComponent(pipeFollowingComponent);
 
-            actor.removeComponent(PickupComponent.class);
-            actor.removeComponent(RigidBodyComponent.class);
-            actor.removeComponent(LifespanComponent.class);
-            return true;
+        removeComponents(actor, PickupTemplate.PICKUP_TYPES);
+        return true;
+    }
+
+    /**
+     * Removes the listed components the entity has, skipping the ones it does not.
+     */
+    private static void removeComponents(EntityRef entity, List<Class<? extends Component>> types) {
+        for (Class<? extends Component> type : types) {
+            if (entity.hasComponent(type)) {
+                entity.removeComponent(type);
+            }
         }
-        return false;
     }
 
 }
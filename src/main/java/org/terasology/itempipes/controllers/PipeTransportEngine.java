@@ -0,0 +1,296 @@
+/*
+ * Copyright 2017 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.itempipes.controllers;
+
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.prefab.Prefab;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Keeps the motion state of in-pipe items in flat arrays so that friction and path advance can run as a tight
+ * loop. Items that would leave their segment are reported as transitions and resolved by the {@link BlockMotionSystem}.
+ * The loop only touches the arrays, so it can be split over a ForkJoinPool while everything that reads or writes
+ * entities stays in the serial commit phase.
+ */
+public class PipeTransportEngine {
+    public static final float MIN_VELOCITY = .5f;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int size;
+    private EntityRef[] entities = new EntityRef[INITIAL_CAPACITY];
+    private int[] segments = new int[INITIAL_CAPACITY];
+    private float[] distances = new float[INITIAL_CAPACITY];
+    private float[] velocities = new float[INITIAL_CAPACITY];
+    private float[] frictions = new float[INITIAL_CAPACITY];
+    private byte[] signs = new byte[INITIAL_CAPACITY];
+    private boolean[] removed = new boolean[INITIAL_CAPACITY];
+    private boolean[] transitioning = new boolean[INITIAL_CAPACITY];
+    private boolean hasRemoved;
+
+    private final TObjectIntMap<EntityRef> indices = new TObjectIntHashMap<>(INITIAL_CAPACITY, 0.5f, -1);
+
+    private int segmentCount;
+    private Prefab[] segmentPrefabs = new Prefab[16];
+    private float[] segmentLengths = new float[16];
+    private final TObjectIntMap<Prefab> segmentIds = new TObjectIntHashMap<>(16, 0.5f, -1);
+
+    private int transitionCount;
+    private int[] transitions = new int[INITIAL_CAPACITY];
+
+    private ForkJoinPool pool;
+    private int parallelThreshold = 1024;
+
+    /**
+     * Sets the number of threads used by {@link #integrate(float)}. Results do not depend on this value.
+     */
+    public void setParallelism(int parallelism) {
+        shutdown();
+        if (parallelism > 1) {
+            pool = new ForkJoinPool(parallelism);
+        }
+    }
+
+    public int getParallelism() {
+        return pool == null ? 1 : pool.getParallelism();
+    }
+
+    /**
+     * @param parallelThreshold the number of items per partition below which the work is not split any further
+     */
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = Math.max(1, parallelThreshold);
+    }
+
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int indexOf(EntityRef entity) {
+        return indices.get(entity);
+    }
+
+    /**
+     * @return the slot of the item, which stays valid until the next {@link #compact()}
+     */
+    public int add(EntityRef entity) {
+        int index = indices.get(entity);
+        if (index != -1) {
+            return index;
+        }
+        ensureCapacity(size + 1);
+        index = size++;
+        entities[index] = entity;
+        removed[index] = false;
+        indices.put(entity, index);
+        return index;
+    }
+
+    public void set(int index, Prefab prefab, float length, float distance, int sign, float velocity, float friction) {
+        segments[index] = segmentId(prefab, length);
+        distances[index] = distance;
+        signs[index] = (byte) (sign < 0 ? -1 : 1);
+        velocities[index] = velocity;
+        frictions[index] = friction;
+    }
+
+    public void remove(EntityRef entity) {
+        int index = indices.remove(entity);
+        if (index != -1) {
+            removed[index] = true;
+            hasRemoved = true;
+        }
+    }
+
+    public boolean isRemoved(int index) {
+        return removed[index];
+    }
+
+    public void clear() {
+        Arrays.fill(entities, 0, size, null);
+        size = 0;
+        transitionCount = 0;
+        hasRemoved = false;
+        indices.clear();
+    }
+
+    /**
+     * Applies friction and advances every item along its current segment. Items that would run past
+     * either end are left untouched and reported through {@link #getTransition(int)} in slot order.
+     */
+    public void integrate(float delta) {
+        if (pool != null && size > parallelThreshold) {
+            pool.invoke(new IntegrateTask(0, size, delta));
+        } else {
+            integrate(0, size, delta);
+        }
+
+        transitionCount = 0;
+        for (int i = 0; i < size; i++) {
+            if (transitioning[i]) {
+                if (transitionCount == transitions.length) {
+                    transitions = Arrays.copyOf(transitions, transitions.length * 2);
+                }
+                transitions[transitionCount++] = i;
+            }
+        }
+    }
+
+    private void integrate(int from, int to, float delta) {
+        for (int i = from; i < to; i++) {
+            transitioning[i] = false;
+            if (removed[i]) {
+                continue;
+            }
+            float velocity = velocities[i] - frictions[i] * delta;
+            if (Math.abs(velocity) < MIN_VELOCITY) {
+                velocity = MIN_VELOCITY * Math.signum(velocity);
+            }
+            velocities[i] = velocity;
+
+            float distance = distances[i] + signs[i] * velocity * delta;
+            if (distance < 0 || distance > segmentLengths[segments[i]]) {
+                transitioning[i] = true;
+            } else {
+                distances[i] = distance;
+            }
+        }
+    }
+
+    private class IntegrateTask extends RecursiveAction {
+        private final int from;
+        private final int to;
+        private final float delta;
+
+        IntegrateTask(int from, int to, float delta) {
+            this.from = from;
+            this.to = to;
+            this.delta = delta;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= parallelThreshold) {
+                integrate(from, to, delta);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new IntegrateTask(from, middle, delta), new IntegrateTask(middle, to, delta));
+            }
+        }
+    }
+
+    public int getTransitionCount() {
+        return transitionCount;
+    }
+
+    /**
+     * @return the slot of the n-th item that reached the end of its segment in the last {@link #integrate(float)}
+     */
+    public int getTransition(int n) {
+        return transitions[n];
+    }
+
+    /**
+     * Drops the slots of removed items. Slots of the remaining items may change.
+     */
+    public void compact() {
+        if (!hasRemoved) {
+            return;
+        }
+        int target = 0;
+        for (int i = 0; i < size; i++) {
+            if (removed[i]) {
+                continue;
+            }
+            if (target != i) {
+                entities[target] = entities[i];
+                segments[target] = segments[i];
+                distances[target] = distances[i];
+                velocities[target] = velocities[i];
+                frictions[target] = frictions[i];
+                signs[target] = signs[i];
+                removed[target] = false;
+                indices.put(entities[target], target);
+            }
+            target++;
+        }
+        Arrays.fill(entities, target, size, null);
+        size = target;
+        hasRemoved = false;
+    }
+
+    public EntityRef getEntity(int index) {
+        return entities[index];
+    }
+
+    public Prefab getSegmentPrefab(int index) {
+        return segmentPrefabs[segments[index]];
+    }
+
+    public float getDistance(int index) {
+        return distances[index];
+    }
+
+    public float getVelocity(int index) {
+        return velocities[index];
+    }
+
+    public int getSign(int index) {
+        return signs[index];
+    }
+
+    private int segmentId(Prefab prefab, float length) {
+        int id = segmentIds.get(prefab);
+        if (id == -1) {
+            if (segmentCount == segmentPrefabs.length) {
+                segmentPrefabs = Arrays.copyOf(segmentPrefabs, segmentCount * 2);
+                segmentLengths = Arrays.copyOf(segmentLengths, segmentCount * 2);
+            }
+            id = segmentCount++;
+            segmentPrefabs[id] = prefab;
+            segmentLengths[id] = length;
+            segmentIds.put(prefab, id);
+        }
+        return id;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= entities.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, entities.length * 2);
+        entities = Arrays.copyOf(entities, newCapacity);
+        segments = Arrays.copyOf(segments, newCapacity);
+        distances = Arrays.copyOf(distances, newCapacity);
+        velocities = Arrays.copyOf(velocities, newCapacity);
+        frictions = Arrays.copyOf(frictions, newCapacity);
+        signs = Arrays.copyOf(signs, newCapacity);
+        removed = Arrays.copyOf(removed, newCapacity);
+        transitioning = Arrays.copyOf(transitioning, newCapacity);
+    }
+}
@@ -15,35 +15,136 @@
  */
 package org.terasology.itempipes.event;
 
-import org.terasology.entitySystem.entity.EntityRef;
 import org.terasology.entitySystem.event.AbstractConsumableEvent;
-import org.terasology.entitySystem.prefab.Prefab;
-import org.terasology.math.Rotation;
 import org.terasology.math.Side;
-import org.terasology.segmentedpaths.SegmentMeta;
-import org.terasology.segmentedpaths.components.BlockMappingComponent;
-import org.terasology.world.block.Block;
+import org.terasology.math.SideBitFlag;
 
-import java.util.List;
 import java.util.Set;
 
 public class PipeMappingEvent extends AbstractConsumableEvent {
+    private static final Side[] SIDES = Side.values();
+
     private Set<Side> outputSides;
+    private byte outputMask;
     private Side outputSide;
+    private int itemCount = 1;
+    private int[] splitCounts;
 
     public PipeMappingEvent(Set<Side> sides) {
         this.outputSides = sides;
         for (Side side : sides) {
-            this.outputSide = side;
-            break;
+            if (this.outputSide == null) {
+                this.outputSide = side;
+            }
+            this.outputMask |= SideBitFlag.getSide(side);
         }
 
     }
 
+    public PipeMappingEvent(Set<Side> sides, int itemCount) {
+        this(sides);
+        this.itemCount = Math.max(1, itemCount);
+    }
+
+    /**
+     * @return the number of items in the packet being routed
+     */
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    /**
+     * Sends part of the packet to another output. At least one item always stays with the main output side.
+     */
+    public void split(Side side, int count) {
+        if (!hasOutput(side) || count <= 0) {
+            return;
+        }
+        if (splitCounts == null) {
+            splitCounts = new int[SIDES.length];
+        }
+        int available = itemCount - 1 - getSplitTotal() + getSplitCount(side);
+        splitCounts[side.ordinal()] = Math.min(count, available);
+    }
+
+    public void clearSplits() {
+        splitCounts = null;
+    }
+
+    /**
+     * @return the number of items split off to the given side, ignoring the main output side
+     */
+    public int getSplitCount(Side side) {
+        if (splitCounts == null || side == outputSide) {
+            return 0;
+        }
+        return splitCounts[side.ordinal()];
+    }
+
+    private int getSplitTotal() {
+        int total = 0;
+        if (splitCounts != null) {
+            for (Side side : SIDES) {
+                total += getSplitCount(side);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of items that follow the main output side
+     */
+    public int getRemainingCount() {
+        return itemCount - getSplitTotal();
+    }
+
     public Set<Side> getOutputSides() {
         return outputSides;
     }
 
+    public boolean hasOutput(Side side) {
+        return (outputMask & SideBitFlag.getSide(side)) != 0;
+    }
+
+    /**
+     * @return the n-th output side in {@link Side} order, or null if there are not that many outputs
+     */
+    public Side getOutput(int n) {
+        for (Side side : SIDES) {
+            if (hasOutput(side)) {
+                if (n == 0) {
+                    return side;
+                }
+                n--;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Spreads the packet over the outputs. The side with the most items becomes the output side, the others are split off.
+     *
+     * @param counts number of items per output, indexed by side ordinal
+     */
+    public void distribute(int[] counts) {
+        Side main = null;
+        for (Side side : SIDES) {
+            if (hasOutput(side) && counts[side.ordinal()] > 0 && (main == null || counts[side.ordinal()] > counts[main.ordinal()])) {
+                main = side;
+            }
+        }
+        if (main == null) {
+            return;
+        }
+        setOutputSide(main);
+        clearSplits();
+        for (Side side : SIDES) {
+            if (side != main && counts[side.ordinal()] > 0) {
+                split(side, counts[side.ordinal()]);
+            }
+        }
+    }
+
     public Side getOutputSide() {
         return outputSide;
     }
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.itempipes.event;
+
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.prefab.Prefab;
+import org.terasology.network.BroadcastEvent;
+import org.terasology.network.NetworkEvent;
+
+/**
+ * Sent to clients when an item enters a pipe segment. Clients move the item along the segment themselves until the
+ * next one of these, instead of receiving its location every tick.
+ */
+@BroadcastEvent
+public class PipeSegmentEnteredEvent extends NetworkEvent {
+    private Prefab segment;
+    private EntityRef block = EntityRef.NULL;
+    private float distance;
+    private float velocity;
+    private int sign;
+    private long serverTime;
+
+    protected PipeSegmentEnteredEvent() {
+    }
+
+    public PipeSegmentEnteredEvent(Prefab segment, EntityRef block, float distance, float velocity, int sign, long serverTime) {
+        this.segment = segment;
+        this.block = block;
+        this.distance = distance;
+        this.velocity = velocity;
+        this.sign = sign;
+        this.serverTime = serverTime;
+    }
+
+    public Prefab getSegment() {
+        return segment;
+    }
+
+    public EntityRef getBlock() {
+        return block;
+    }
+
+    /**
+     * @return the distance along the segment at {@link #getServerTime()}
+     */
+    public float getDistance() {
+        return distance;
+    }
+
+    public float getVelocity() {
+        return velocity;
+    }
+
+    public int getSign() {
+        return sign;
+    }
+
+    public long getServerTime() {
+        return serverTime;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2017 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.itempipes.loadtest;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.terasology.math.Side;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.utilities.random.Random;
+
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A synthetic pipe network: pipe positions plus the source blocks items are fed from and the sink blocks they are
+ * delivered to. All positions lie in the horizontal plane of the origin.
+ */
+public class PipeLoadTestScenario {
+    public enum Layout {
+        LINE, GRID, TREE, LOOP
+    }
+
+    private static final Side[] HORIZONTAL = {Side.LEFT, Side.RIGHT, Side.FRONT, Side.BACK};
+
+    private final Set<Vector3i> pipes = Sets.newLinkedHashSet();
+    private final List<Vector3i> sources = Lists.newArrayList();
+    private final List<Vector3i> sinks = Lists.newArrayList();
+
+    public Set<Vector3i> getPipes() {
+        return pipes;
+    }
+
+    public List<Vector3i> getSources() {
+        return sources;
+    }
+
+    public List<Vector3i> getSinks() {
+        return sinks;
+    }
+
+    /**
+     * @param size the approximate number of pipe blocks
+     */
+    public static PipeLoadTestScenario generate(Layout layout, int size, Vector3i origin, Random random) {
+        PipeLoadTestScenario scenario = new PipeLoadTestScenario();
+        switch (layout) {
+            case LINE:
+                scenario.line(size);
+                break;
+            case GRID:
+                scenario.grid(size);
+                break;
+            case TREE:
+                scenario.tree(size, random);
+                break;
+            case LOOP:
+                scenario.loop(size);
+                break;
+        }
+        scenario.moveTo(origin);
+        return scenario;
+    }
+
+    /**
+     * Replaces every position with a copy offset by the origin; the positions in the set are not changed in place.
+     */
+    private void moveTo(Vector3i origin) {
+        List<Vector3i> local = Lists.newArrayList(pipes);
+        pipes.clear();
+        for (Vector3i position : local) {
+            pipes.add(offset(position, origin));
+        }
+        sources.replaceAll(position -> offset(position, origin));
+        sinks.replaceAll(position -> offset(position, origin));
+    }
+
+    private static Vector3i offset(Vector3i position, Vector3i origin) {
+        Vector3i result = new Vector3i(position);
+        result.add(origin);
+        return result;
+    }
+
+    private void line(int size) {
+        sources.add(new Vector3i(0, 0, 0));
+        for (int x = 1; x <= size; x++) {
+            pipes.add(new Vector3i(x, 0, 0));
+        }
+        sinks.add(new Vector3i(size + 1, 0, 0));
+    }
+
+    private void grid(int size) {
+        int side = Math.max(2, (int) Math.ceil(Math.sqrt(size)));
+        for (int z = 0; z < side; z++) {
+            for (int x = 1; x <= side; x++) {
+                pipes.add(new Vector3i(x, 0, z));
+            }
+            if (z % 4 == 0) {
+                sources.add(new Vector3i(0, 0, z));
+            }
+            sinks.add(new Vector3i(side + 1, 0, z));
+        }
+    }
+
+    /**
+     * Grows branches from a trunk, splitting at random junctions, with a sink at the end of every branch.
+     */
+    private void tree(int size, Random random) {
+        sources.add(new Vector3i(0, 0, 0));
+        Set<Vector3i> occupied = Sets.newHashSet(sources);
+        Deque<Vector3i> starts = Lists.newLinkedList();
+        Deque<Side> directions = Lists.newLinkedList();
+        starts.add(new Vector3i(0, 0, 0));
+        directions.add(Side.RIGHT);
+        while (!starts.isEmpty() && pipes.size() < size) {
+            Vector3i current = starts.poll();
+            Side direction = directions.poll();
+            int length = 4 + random.nextInt(8);
+            for (int i = 0; i < length && pipes.size() < size; i++) {
+                Vector3i next = new Vector3i(current);
+                next.add(direction.getVector3i());
+                if (!isFree(next, current, occupied)) {
+                    break;
+                }
+                pipes.add(next);
+                occupied.add(next);
+                current = next;
+                if (i >= 2 && random.nextFloat() < .25f) {
+                    starts.add(current);
+                    directions.add(random.nextBoolean() ? Side.FRONT : Side.BACK);
+                }
+            }
+            Vector3i sink = new Vector3i(current);
+            sink.add(direction.getVector3i());
+            if (!pipes.isEmpty() && isFree(sink, current, occupied)) {
+                sinks.add(sink);
+                occupied.add(sink);
+            }
+        }
+    }
+
+    /**
+     * @return true if the position and all its horizontal neighbours apart from the one it is reached from are free,
+     * so a new block there does not join unrelated branches
+     */
+    private boolean isFree(Vector3i position, Vector3i from, Set<Vector3i> occupied) {
+        if (occupied.contains(position)) {
+            return false;
+        }
+        Vector3i neighbor = new Vector3i();
+        for (Side side : HORIZONTAL) {
+            neighbor.set(position);
+            neighbor.add(side.getVector3i());
+            if (!neighbor.equals(from) && occupied.contains(neighbor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void loop(int size) {
+        int width = Math.max(2, size / 4);
+        int depth = Math.max(2, size / 2 - width + 2);
+        for (int x = 1; x <= width; x++) {
+            for (int z = 0; z < depth; z++) {
+                if (x == 1 || x == width || z == 0 || z == depth - 1) {
+                    pipes.add(new Vector3i(x, 0, z));
+                }
+            }
+        }
+        sources.add(new Vector3i(0, 0, 0));
+        sinks.add(new Vector3i(width + 1, 0, depth - 1));
+    }
+}
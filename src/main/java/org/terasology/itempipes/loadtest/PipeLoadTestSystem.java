@@ -0,0 +1,257 @@
+/*
+ * Copyright 2017 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.itempipes.loadtest;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terasology.entitySystem.entity.EntityManager;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.prefab.Prefab;
+import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterMode;
+import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.itempipes.action.InventoryInsertAction;
+import org.terasology.itempipes.action.RandomMappingAction;
+import org.terasology.itempipes.blocks.PipeBlockFamily;
+import org.terasology.itempipes.components.PipeFollowingComponent;
+import org.terasology.itempipes.controllers.BlockMotionSystem;
+import org.terasology.itempipes.controllers.PipeSystem;
+import org.terasology.itempipes.network.PipeStatistics;
+import org.terasology.logic.console.commandSystem.annotations.Command;
+import org.terasology.logic.console.commandSystem.annotations.CommandParam;
+import org.terasology.logic.location.LocationComponent;
+import org.terasology.logic.permission.PermissionManager;
+import org.terasology.math.Side;
+import org.terasology.math.SideBitFlag;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.registry.In;
+import org.terasology.segmentedpaths.components.PathFollowerComponent;
+import org.terasology.utilities.random.FastRandom;
+import org.terasology.utilities.random.Random;
+import org.terasology.world.WorldProvider;
+import org.terasology.world.block.Block;
+import org.terasology.world.block.BlockComponent;
+import org.terasology.world.block.BlockManager;
+import org.terasology.world.block.family.BlockFamily;
+import org.terasology.world.block.items.BlockItemFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Builds a synthetic network and drives the item motion loop with a fixed time step, so the same seed always gives
+ * the same run. The ticks run inside the command call and do not depend on rendering or a connected client. The
+ * blocks the test replaced are put back and its items are destroyed once the run is over.
+ */
+@RegisterSystem(RegisterMode.AUTHORITY)
+public class PipeLoadTestSystem extends BaseComponentSystem {
+    private static final Logger logger = LoggerFactory.getLogger(PipeLoadTestSystem.class);
+
+    @In
+    private EntityManager entityManager;
+    @In
+    private WorldProvider worldProvider;
+    @In
+    private BlockManager blockManager;
+    @In
+    private PipeSystem pipeSystem;
+    @In
+    private BlockMotionSystem blockMotionSystem;
+    @In
+    private InventoryInsertAction inventoryInsertAction;
+    @In
+    private RandomMappingAction randomMappingAction;
+
+    private Vector3i origin = new Vector3i(0, 60, 0);
+    private float tickDelta = 1f / 60;
+    private String pipeFamily = "ItemPipes:basicPipe";
+    private String sourceBlock = "ItemPipes:pump";
+    private String sinkBlock = "Core:chest";
+    private String itemFamily = "Core:stone";
+
+    private final EntityRef[] sourcePipes = new EntityRef[6];
+    private final Prefab[] paths = new Prefab[PipeSystem.MAX_PATH_COUNT];
+
+    public void setOrigin(Vector3i origin) {
+        this.origin.set(origin);
+    }
+
+    /**
+     * Simulated seconds per tick.
+     */
+    public void setTickDelta(float tickDelta) {
+        this.tickDelta = tickDelta;
+    }
+
+    @Command(shortDescription = "Builds a synthetic pipe network and runs the item motion loop on it with a fixed seed",
+            helpText = "Layouts are line, grid, tree and loop. Blocks the game until all ticks have run.",
+            runOnServer = true, requiredPermission = PermissionManager.DEBUG_PERMISSION)
+    public String pipeLoadTest(@CommandParam("layout") String layout, @CommandParam("pipes") int pipes,
+                               @CommandParam("items") int items, @CommandParam("ticks") int ticks, @CommandParam("seed") int seed) {
+        PipeLoadTestScenario.Layout scenarioLayout;
+        try {
+            scenarioLayout = PipeLoadTestScenario.Layout.valueOf(layout.toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            return "Unknown layout " + layout + ", expected one of " + Arrays.toString(PipeLoadTestScenario.Layout.values());
+        }
+        String report = run(scenarioLayout, pipes, items, ticks, seed);
+        logger.info(report);
+        return report;
+    }
+
+    public String run(PipeLoadTestScenario.Layout layout, int pipes, int items, int ticks, long seed) {
+        BlockFamily family = blockManager.getBlockFamily(pipeFamily);
+        BlockFamily item = blockManager.getBlockFamily(itemFamily);
+        if (!(family instanceof PipeBlockFamily) || item == null) {
+            return "Load test needs the block families " + pipeFamily + " and " + itemFamily;
+        }
+        Random random = new FastRandom(seed);
+        randomMappingAction.setSeed(seed);
+        PipeLoadTestScenario scenario = PipeLoadTestScenario.generate(layout, pipes, origin, random);
+        Map<Vector3i, Block> previous = Maps.newHashMap();
+        for (Vector3i position : Iterables.concat(scenario.getPipes(), scenario.getSources(), scenario.getSinks())) {
+            if (!worldProvider.isBlockRelevant(position)) {
+                return "Load test area around " + origin + " is not loaded";
+            }
+            previous.put(new Vector3i(position), worldProvider.getBlock(position));
+        }
+        // placing the pipes also reshapes pipes next to them
+        for (Vector3i position : scenario.getPipes()) {
+            for (Side side : Side.values()) {
+                Vector3i neighbor = new Vector3i(position);
+                neighbor.add(side.getVector3i());
+                if (!previous.containsKey(neighbor) && worldProvider.isBlockRelevant(neighbor)) {
+                    previous.put(neighbor, worldProvider.getBlock(neighbor));
+                }
+            }
+        }
+        List<EntityRef> created = Lists.newArrayList();
+        try {
+            build(scenario, (PipeBlockFamily) family);
+            return run(layout, scenario, item, items, ticks, random, created);
+        } finally {
+            cleanUp(scenario, previous, created);
+        }
+    }
+
+    private String run(PipeLoadTestScenario.Layout layout, PipeLoadTestScenario scenario, BlockFamily item, int items,
+                       int ticks, Random random, List<EntityRef> created) {
+        BlockItemFactory itemFactory = new BlockItemFactory(entityManager);
+        PipeStatistics statistics = pipeSystem.getStatistics();
+        statistics.reset();
+        long[] tickTimes = new long[Math.max(1, ticks)];
+        int remaining = items;
+        int rejected = 0;
+        long started = System.nanoTime();
+        for (int tick = 0; tick < ticks; tick++) {
+            for (Vector3i source : scenario.getSources()) {
+                if (remaining == 0) {
+                    break;
+                }
+                EntityRef itemEntity = itemFactory.newInstance(item);
+                created.add(itemEntity);
+                if (inject(source, itemEntity, random)) {
+                    remaining--;
+                } else {
+                    rejected++;
+                }
+            }
+            long tickStarted = System.nanoTime();
+            blockMotionSystem.update(tickDelta);
+            inventoryInsertAction.update(tickDelta);
+            tickTimes[tick] = System.nanoTime() - tickStarted;
+        }
+        long wallTime = System.nanoTime() - started;
+
+        Arrays.sort(tickTimes);
+        float simulated = Math.max(tickDelta, ticks * tickDelta);
+        return String.format(Locale.ENGLISH,
+                "%s: %d pipes, %d sources, %d sinks, %d ticks in %.1f ms%n"
+                        + "tick ms p50 %.3f p90 %.3f p99 %.3f max %.3f%n"
+                        + "inserted %d (rejected %d), delivered %d (%.1f/s), hops %d (%.1f/s), dropped %d",
+                layout, scenario.getPipes().size(), scenario.getSources().size(), scenario.getSinks().size(), ticks, wallTime / 1e6,
+                percentile(tickTimes, .5f), percentile(tickTimes, .9f), percentile(tickTimes, .99f), tickTimes[tickTimes.length - 1] / 1e6,
+                statistics.getInserted(), rejected, statistics.getDelivered(), statistics.getDelivered() / simulated,
+                statistics.getHops(), statistics.getHops() / simulated, statistics.getDropped());
+    }
+
+    private void build(PipeLoadTestScenario scenario, PipeBlockFamily family) {
+        Block source = blockManager.getBlock(sourceBlock);
+        Block sink = blockManager.getBlock(sinkBlock);
+        Map<Vector3i, Block> endpoints = Maps.newHashMap();
+        scenario.getSources().forEach(position -> endpoints.put(position, source));
+        scenario.getSinks().forEach(position -> endpoints.put(position, sink));
+        worldProvider.setBlocks(endpoints);
+        pipeSystem.placePipes(family, scenario.getPipes());
+    }
+
+    /**
+     * Destroys the items still in the test's pipes, puts the replaced blocks back, and destroys what is left of the
+     * test's items, for example pickups dropped at open pipe ends.
+     */
+    private void cleanUp(PipeLoadTestScenario scenario, Map<Vector3i, Block> previous, List<EntityRef> created) {
+        List<EntityRef> inPipes = Lists.newArrayList();
+        for (EntityRef entity : entityManager.getEntitiesWith(PipeFollowingComponent.class, PathFollowerComponent.class)) {
+            BlockComponent blockComponent = entity.getComponent(PathFollowerComponent.class).segmentMeta.association.getComponent(BlockComponent.class);
+            if (blockComponent != null && scenario.getPipes().contains(blockComponent.getPosition())) {
+                inPipes.add(entity);
+            }
+        }
+        inPipes.forEach(EntityRef::destroy);
+        worldProvider.setBlocks(previous);
+        for (EntityRef entity : created) {
+            if (entity.exists()) {
+                entity.destroy();
+            }
+        }
+    }
+
+    /**
+     * Feeds an item into the first non-full pipe next to the source on a randomly picked path, destroying it if there
+     * is none.
+     */
+    private boolean inject(Vector3i source, EntityRef item, Random random) {
+        LocationComponent locationComponent = new LocationComponent();
+        locationComponent.setWorldPosition(source.toVector3f());
+        item.addOrSaveComponent(locationComponent);
+        // sides and paths in a fixed order, so the seed alone decides the choice
+        byte sides = pipeSystem.findFreePipes(source, sourcePipes);
+        for (Side side : Side.values()) {
+            if ((sides & SideBitFlag.getSide(side)) == 0) {
+                continue;
+            }
+            EntityRef pipe = sourcePipes[side.ordinal()];
+            int pathCount = pipeSystem.findMatchingPathPrefabs(pipe, side.reverse(), paths);
+            if (pathCount == 0) {
+                continue;
+            }
+            if (pipeSystem.insertIntoPipe(item, pipe, side.reverse(), paths[random.nextInt(pathCount)], 1f)) {
+                return true;
+            }
+        }
+        item.destroy();
+        return false;
+    }
+
+    private static double percentile(long[] sorted, float percentile) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))] / 1e6;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.itempipes.network;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.math.Side;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.world.block.Block;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Graph of all loaded pipe blocks and their endpoints. Nodes are linked when both blocks expose
+ * the shared side, so lookups along a path never have to go back to the world.
+ */
+public class PipeNetwork {
+    private final Map<Vector3i, PipeNode> nodes = Maps.newHashMap();
+    private final List<PipeNetworkListener> listeners = Lists.newArrayList();
+    private final Vector3i lookup = new Vector3i();
+
+    public void addListener(PipeNetworkListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(PipeNetworkListener listener) {
+        listeners.remove(listener);
+    }
+
+    public PipeNode getNode(Vector3i position) {
+        return nodes.get(position);
+    }
+
+    public PipeNode getNeighbor(Vector3i position, Side side) {
+        lookup.set(position);
+        lookup.add(side.getVector3i());
+        return nodes.get(lookup);
+    }
+
+    public Collection<PipeNode> getNodes() {
+        return Collections.unmodifiableCollection(nodes.values());
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public PipeNode addOrUpdate(Vector3i position, EntityRef entity, Block block, byte sides, boolean pipe) {
+        PipeNode node = nodes.get(position);
+        if (node == null) {
+            node = new PipeNode(position, entity, block, sides, pipe);
+            nodes.put(node.getPosition(), node);
+        } else {
+            node.update(entity, block, sides, pipe);
+        }
+        link(node);
+        notifyChanged(position);
+        return node;
+    }
+
+    public void remove(Vector3i position) {
+        PipeNode node = nodes.remove(position);
+        if (node == null) {
+            return;
+        }
+        for (Side side : Side.values()) {
+            PipeNode neighbor = node.getNeighbor(side);
+            if (neighbor != null && neighbor.getNeighbor(side.reverse()) == node) {
+                neighbor.setNeighbor(side.reverse(), null);
+            }
+            node.setNeighbor(side, null);
+        }
+        notifyChanged(position);
+    }
+
+    public void clear() {
+        nodes.clear();
+    }
+
+    private void notifyChanged(Vector3i position) {
+        for (PipeNetworkListener listener : listeners) {
+            listener.nodeChanged(position);
+        }
+    }
+
+    private void link(PipeNode node) {
+        for (Side side : Side.values()) {
+            PipeNode neighbor = getNeighbor(node.getPosition(), side);
+            if (neighbor != null && (node.isPipe() || neighbor.isPipe())
+                    && node.hasSide(side) && neighbor.hasSide(side.reverse())) {
+                node.setNeighbor(side, neighbor);
+                neighbor.setNeighbor(side.reverse(), node);
+            } else {
+                if (neighbor != null && neighbor.getNeighbor(side.reverse()) == node) {
+                    neighbor.setNeighbor(side.reverse(), null);
+                }
+                node.setNeighbor(side, null);
+            }
+        }
+    }
+}
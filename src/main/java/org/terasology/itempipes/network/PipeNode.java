@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.itempipes.network;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.math.Side;
+import org.terasology.math.SideBitFlag;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.world.block.Block;
+
+/**
+ * A single block in a {@link PipeNetwork}, either a pipe or a block with a PipeConnectionComponent.
+ */
+public class PipeNode {
+    private static final Logger logger = LoggerFactory.getLogger(PipeNode.class);
+
+    private final Vector3i position;
+    private EntityRef entity;
+    private Block block;
+    private byte sides;
+    private boolean pipe;
+    private int routeDistance = Integer.MAX_VALUE;
+    private int itemCount;
+    private int capacity;
+
+    private final PipeNode[] neighbors = new PipeNode[6];
+
+    PipeNode(Vector3i position, EntityRef entity, Block block, byte sides, boolean pipe) {
+        this.position = new Vector3i(position);
+        this.entity = entity;
+        this.block = block;
+        this.sides = sides;
+        this.pipe = pipe;
+    }
+
+    void update(EntityRef entity, Block block, byte sides, boolean pipe) {
+        this.entity = entity;
+        this.block = block;
+        this.sides = sides;
+        this.pipe = pipe;
+    }
+
+    public Vector3i getPosition() {
+        return position;
+    }
+
+    public EntityRef getEntity() {
+        return entity;
+    }
+
+    public Block getBlock() {
+        return block;
+    }
+
+    public byte getSides() {
+        return sides;
+    }
+
+    public boolean isPipe() {
+        return pipe;
+    }
+
+    /**
+     * @return hops to the nearest accepting endpoint as last computed by the {@link PipeRouter}
+     */
+    public int getRouteDistance() {
+        return routeDistance;
+    }
+
+    void setRouteDistance(int routeDistance) {
+        this.routeDistance = routeDistance;
+    }
+
+    /**
+     * @return the number of packets currently travelling through this block, see {@link #getCapacity()}
+     */
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    /**
+     * @return the maximum number of packets in this block, 0 for no limit. A packet is one item entity, so a coalesced
+     * stack counts once.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public boolean isFull() {
+        return capacity > 0 && itemCount >= capacity;
+    }
+
+    public void addItems(int count) {
+        itemCount += count;
+        if (itemCount < 0) {
+            logger.warn("Item count of pipe node at {} dropped to {}, resetting it to 0", position, itemCount);
+            itemCount = 0;
+        }
+    }
+
+    public boolean hasSide(Side side) {
+        return (sides & SideBitFlag.getSide(side)) != 0;
+    }
+
+    /**
+     * @return the connected node on the given side or null if there is no matching segment end
+     */
+    public PipeNode getNeighbor(Side side) {
+        return neighbors[side.ordinal()];
+    }
+
+    void setNeighbor(Side side, PipeNode node) {
+        neighbors[side.ordinal()] = node;
+    }
+}
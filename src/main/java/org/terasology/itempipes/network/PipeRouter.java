@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.itempipes.network;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
+import org.terasology.logic.inventory.InventoryComponent;
+import org.terasology.math.Side;
+import org.terasology.math.geom.Vector3i;
+
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps the hop distance from every pipe to the nearest endpoint that accepts items. Changes to the network only
+ * mark positions dirty; the connected pipe runs around them are recomputed the next time a route is asked for.
+ * Worlds without routing pipes never ask, so once too many positions are dirty they are dropped in favour of
+ * recomputing the whole network on the next query.
+ */
+public class PipeRouter implements PipeNetworkListener {
+    public static final int UNREACHABLE = Integer.MAX_VALUE;
+    private static final int MAX_DIRTY = 4096;
+
+    private final PipeNetwork network;
+    private final Set<Vector3i> dirty = Sets.newHashSet();
+    private boolean dirtyAll;
+
+    public PipeRouter(PipeNetwork network) {
+        this.network = network;
+        network.addListener(this);
+    }
+
+    @Override
+    public void nodeChanged(Vector3i position) {
+        if (dirtyAll) {
+            return;
+        }
+        dirty.add(new Vector3i(position));
+        if (dirty.size() > MAX_DIRTY) {
+            dirty.clear();
+            dirtyAll = true;
+        }
+    }
+
+    public boolean accepts(PipeNode node) {
+        return !node.isPipe() && node.getEntity().hasComponent(InventoryComponent.class);
+    }
+
+    /**
+     * @return the number of hops from the node to the nearest accepting endpoint or {@link #UNREACHABLE}
+     */
+    public int getDistance(PipeNode node) {
+        refresh();
+        return node.getRouteDistance();
+    }
+
+    /**
+     * @return the output side that leads to the nearest accepting endpoint, or null if none of them does
+     */
+    public Side getNextHop(PipeNode node, Set<Side> outputSides) {
+        refresh();
+        Side best = null;
+        int bestDistance = UNREACHABLE;
+        for (Side side : outputSides) {
+            PipeNode neighbor = node.getNeighbor(side);
+            if (neighbor != null && neighbor.getRouteDistance() < bestDistance) {
+                best = side;
+                bestDistance = neighbor.getRouteDistance();
+            }
+        }
+        return best;
+    }
+
+    private void refresh() {
+        if (dirty.isEmpty() && !dirtyAll) {
+            return;
+        }
+        Set<PipeNode> affected = Sets.newHashSet();
+        Deque<PipeNode> queue = Queues.newArrayDeque();
+        if (dirtyAll) {
+            affected.addAll(network.getNodes());
+            dirtyAll = false;
+        }
+        for (Vector3i position : dirty) {
+            visit(network.getNode(position), affected, queue);
+            for (Side side : Side.values()) {
+                visit(network.getNeighbor(position, side), affected, queue);
+            }
+        }
+        dirty.clear();
+
+        // collect the pipe runs touching the changed positions; endpoints are leaves
+        while (!queue.isEmpty()) {
+            PipeNode node = queue.poll();
+            if (!node.isPipe()) {
+                continue;
+            }
+            for (Side side : Side.values()) {
+                visit(node.getNeighbor(side), affected, queue);
+            }
+        }
+
+        List<PipeNode> sources = Lists.newArrayList();
+        for (PipeNode node : affected) {
+            if (accepts(node)) {
+                node.setRouteDistance(0);
+                sources.add(node);
+            } else {
+                node.setRouteDistance(UNREACHABLE);
+            }
+        }
+
+        queue.addAll(sources);
+        while (!queue.isEmpty()) {
+            PipeNode node = queue.poll();
+            int distance = node.getRouteDistance() + 1;
+            for (Side side : Side.values()) {
+                PipeNode neighbor = node.getNeighbor(side);
+                if (neighbor != null && neighbor.isPipe() && neighbor.getRouteDistance() > distance) {
+                    neighbor.setRouteDistance(distance);
+                    queue.add(neighbor);
+                }
+            }
+        }
+    }
+
+    private void visit(PipeNode node, Set<PipeNode> affected, Deque<PipeNode> queue) {
+        if (node != null && affected.add(node)) {
+            queue.add(node);
+        }
+    }
+}
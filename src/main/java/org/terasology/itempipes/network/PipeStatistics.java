@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.itempipes.network;
+
+/**
+ * Running totals and timings of what happens to items in the pipe network. Only touched from the game thread.
+ */
+public class PipeStatistics {
+    public enum DropReason {
+        /**
+         * The pipe block under the item no longer exists.
+         */
+        PIPE_REMOVED,
+        /**
+         * The item's segment is not part of the pipe it is associated with.
+         */
+        NO_PATH,
+        /**
+         * The item reached a pipe end with nothing attached.
+         */
+        OPEN_END,
+        /**
+         * The item was handed to an endpoint that is not an inventory.
+         */
+        ENDPOINT,
+        OTHER
+    }
+
+    private long hops;
+    private long mappingEvents;
+    private long inserted;
+    private long insertFailures;
+    private long delivered;
+    private long deliveryFailures;
+    private long[] drops = new long[DropReason.values().length];
+    private long itemsInTransit;
+
+    private long updates;
+    private long updateNanos;
+    private long maxUpdateNanos;
+    private long lastUpdateNanos;
+
+    public void hop() {
+        hops++;
+    }
+
+    public void mappingEvent() {
+        mappingEvents++;
+    }
+
+    public void inserted() {
+        inserted++;
+    }
+
+    public void insertFailed() {
+        insertFailures++;
+    }
+
+    public void delivered() {
+        delivered++;
+    }
+
+    public void deliveryFailed() {
+        deliveryFailures++;
+    }
+
+    public void dropped(DropReason reason) {
+        drops[reason.ordinal()]++;
+    }
+
+    public void itemsInTransit(int change) {
+        itemsInTransit = Math.max(0, itemsInTransit + change);
+    }
+
+    public void recordUpdate(long nanos) {
+        updates++;
+        updateNanos += nanos;
+        lastUpdateNanos = nanos;
+        maxUpdateNanos = Math.max(maxUpdateNanos, nanos);
+    }
+
+    public long getHops() {
+        return hops;
+    }
+
+    public long getMappingEvents() {
+        return mappingEvents;
+    }
+
+    public long getInserted() {
+        return inserted;
+    }
+
+    public long getInsertFailures() {
+        return insertFailures;
+    }
+
+    public long getDelivered() {
+        return delivered;
+    }
+
+    public long getDeliveryFailures() {
+        return deliveryFailures;
+    }
+
+    public long getDropped() {
+        long total = 0;
+        for (long count : drops) {
+            total += count;
+        }
+        return total;
+    }
+
+    public long getDropped(DropReason reason) {
+        return drops[reason.ordinal()];
+    }
+
+    /**
+     * Items currently in pipes; not cleared by {@link #reset()}.
+     */
+    public long getItemsInTransit() {
+        return itemsInTransit;
+    }
+
+    public long getUpdates() {
+        return updates;
+    }
+
+    public double getAverageUpdateMillis() {
+        return updates == 0 ? 0 : updateNanos / 1e6 / updates;
+    }
+
+    public double getMaxUpdateMillis() {
+        return maxUpdateNanos / 1e6;
+    }
+
+    public double getLastUpdateMillis() {
+        return lastUpdateNanos / 1e6;
+    }
+
+    public void reset() {
+        hops = 0;
+        mappingEvents = 0;
+        inserted = 0;
+        insertFailures = 0;
+        delivered = 0;
+        deliveryFailures = 0;
+        drops = new long[DropReason.values().length];
+        updates = 0;
+        updateNanos = 0;
+        maxUpdateNanos = 0;
+        lastUpdateNanos = 0;
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright 2017 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.itempipes.persistence;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terasology.engine.paths.PathManager;
+import org.terasology.entitySystem.Component;
+import org.terasology.entitySystem.entity.EntityManager;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.event.ReceiveEvent;
+import org.terasology.entitySystem.metadata.ComponentMetadata;
+import org.terasology.entitySystem.prefab.Prefab;
+import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterMode;
+import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.entitySystem.systems.UpdateSubscriberSystem;
+import org.terasology.game.Game;
+import org.terasology.itempipes.blocks.PipeBlockFamily;
+import org.terasology.itempipes.blocks.PipeShape;
+import org.terasology.itempipes.components.PipeFollowingComponent;
+import org.terasology.itempipes.controllers.PipeSystem;
+import org.terasology.itempipes.network.PipeNode;
+import org.terasology.logic.inventory.ItemComponent;
+import org.terasology.logic.location.LocationComponent;
+import org.terasology.math.ChunkMath;
+import org.terasology.math.geom.Vector3f;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.persistence.StorageManager;
+import org.terasology.reflection.metadata.FieldMetadata;
+import org.terasology.registry.In;
+import org.terasology.segmentedpaths.SegmentMeta;
+import org.terasology.segmentedpaths.components.PathFollowerComponent;
+import org.terasology.world.WorldComponent;
+import org.terasology.world.WorldProvider;
+import org.terasology.world.block.BlockComponent;
+import org.terasology.world.block.BlockManager;
+import org.terasology.world.block.family.BlockFamily;
+import org.terasology.world.block.items.BlockItemComponent;
+import org.terasology.world.block.items.BlockItemFactory;
+import org.terasology.world.chunks.event.BeforeChunkUnload;
+import org.terasology.world.chunks.event.OnChunkLoaded;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Keeps items that are in pipes of unloading chunks out of the entity store. They are written to a compact
+ * {@link PipeTransitStore} and destroyed before the chunk is saved, then recreated in bulk once their pipes are
+ * loaded again. Only items that are exactly what recreating them would give, apart from the stack size, are stored
+ * this way; everything else stays a normal entity.
+ * <p>
+ * The store lives in the game's save directory and is committed only once a world save has been written, so after a
+ * crash or a quit without saving it matches the entities of the last save.
+ */
+@RegisterSystem(RegisterMode.AUTHORITY)
+public class PipeTransitPersistenceSystem extends BaseComponentSystem implements UpdateSubscriberSystem {
+    private static final Logger logger = LoggerFactory.getLogger(PipeTransitPersistenceSystem.class);
+    /**
+     * Components that a record stores or restoring sets up itself, so they do not have to match.
+     */
+    private static final Set<Class<? extends Component>> RESTORED_COMPONENTS = ImmutableSet.of(
+            LocationComponent.class, PathFollowerComponent.class, PipeFollowingComponent.class);
+
+    @In
+    private EntityManager entityManager;
+    @In
+    private WorldProvider worldProvider;
+    @In
+    private BlockManager blockManager;
+    @In
+    private PipeSystem pipeSystem;
+    @In
+    private StorageManager storageManager;
+    @In
+    private Game game;
+
+    private PipeTransitStore store;
+    private BlockItemFactory blockItemFactory;
+    private Map<Vector3i, List<PipeTransitRecord>> storedByChunk = Maps.newHashMap();
+    private List<PipeTransitRecord> loaded = Lists.newArrayList();
+    private Map<String, Map<Class<? extends Component>, Component>> defaults = Maps.newHashMap();
+    private boolean commitPending;
+
+    @Override
+    public void postBegin() {
+        blockItemFactory = new BlockItemFactory(entityManager);
+        store = new PipeTransitStore(PathManager.getInstance().getSavePath(game.getName().toString()).resolve("itempipes-transit.bin"));
+        try {
+            for (PipeTransitRecord record : store.open()) {
+                storedByChunk.computeIfAbsent(ChunkMath.calcChunkPos(record.getPosition()), k -> Lists.newArrayList()).add(record);
+            }
+        } catch (IOException e) {
+            logger.error("Unable to open the pipe transit store, items in unloading pipes are saved as entities", e);
+            store = null;
+        }
+    }
+
+    @Override
+    public void preSave() {
+        markSave();
+    }
+
+    @Override
+    public void preAutoSave() {
+        markSave();
+    }
+
+    @Override
+    public void postSave() {
+        commitPending = store != null;
+    }
+
+    @Override
+    public void postAutoSave() {
+        commitPending = store != null;
+    }
+
+    /**
+     * The save snapshots the entities now, the store state that matches it is committed once the save is written.
+     */
+    private void markSave() {
+        if (store != null) {
+            store.mark();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        if (store != null) {
+            // the final save has been written by now
+            if (commitPending) {
+                store.commit();
+            }
+            try {
+                store.close();
+            } catch (IOException e) {
+                logger.error("Unable to close the pipe transit store", e);
+            }
+        }
+    }
+
+    @ReceiveEvent(components = {WorldComponent.class})
+    public void onChunkUnload(BeforeChunkUnload event, EntityRef worldEntity) {
+        if (store == null) {
+            return;
+        }
+        Vector3i chunk = event.getChunkPos();
+        List<EntityRef> inChunk = Lists.newArrayList();
+        for (EntityRef item : entityManager.getEntitiesWith(PipeFollowingComponent.class, PathFollowerComponent.class)) {
+            PathFollowerComponent pathFollowerComponent = item.getComponent(PathFollowerComponent.class);
+            BlockComponent blockComponent = pathFollowerComponent.segmentMeta.association.getComponent(BlockComponent.class);
+            if (blockComponent != null && ChunkMath.calcChunkPos(blockComponent.getPosition()).equals(chunk)) {
+                inChunk.add(item);
+            }
+        }
+        // collected first, checking an item against its defaults may create entities
+        List<EntityRef> stored = Lists.newArrayList();
+        for (EntityRef item : inChunk) {
+            PathFollowerComponent pathFollowerComponent = item.getComponent(PathFollowerComponent.class);
+            BlockComponent blockComponent = pathFollowerComponent.segmentMeta.association.getComponent(BlockComponent.class);
+            PipeTransitRecord record = toRecord(item, pathFollowerComponent, blockComponent);
+            if (record == null) {
+                continue;
+            }
+            try {
+                store.append(record);
+            } catch (IOException e) {
+                logger.error("Unable to write to the pipe transit store", e);
+                break;
+            }
+            storedByChunk.computeIfAbsent(chunk, k -> Lists.newArrayList()).add(record);
+            stored.add(item);
+        }
+        stored.forEach(EntityRef::destroy);
+    }
+
+    @ReceiveEvent(components = {WorldComponent.class})
+    public void onChunkLoaded(OnChunkLoaded event, EntityRef worldEntity) {
+        List<PipeTransitRecord> records = storedByChunk.remove(event.getChunkPos());
+        if (records != null) {
+            loaded.addAll(records);
+        }
+    }
+
+    /**
+     * Restores the records of loaded chunks as soon as their pipes are part of the network again.
+     */
+    @Override
+    public void update(float delta) {
+        if (commitPending && !storageManager.isSaving()) {
+            store.commit();
+            commitPending = false;
+        }
+        if (loaded.isEmpty()) {
+            return;
+        }
+        Iterator<PipeTransitRecord> iterator = loaded.iterator();
+        while (iterator.hasNext()) {
+            PipeTransitRecord record = iterator.next();
+            PipeNode node = pipeSystem.getNetwork().getNode(record.getPosition());
+            if (node != null && node.isPipe()) {
+                restore(record, node);
+            } else if (!worldProvider.isBlockRelevant(record.getPosition())) {
+                storedByChunk.computeIfAbsent(ChunkMath.calcChunkPos(record.getPosition()), k -> Lists.newArrayList()).add(record);
+            } else if (node == null && worldProvider.getBlock(record.getPosition()).getBlockFamily() instanceof PipeBlockFamily) {
+                // the pipe entity is not active yet
+                continue;
+            } else {
+                drop(record);
+            }
+            iterator.remove();
+        }
+    }
+
+    private PipeTransitRecord toRecord(EntityRef item, PathFollowerComponent pathFollowerComponent, BlockComponent blockComponent) {
+        ItemComponent itemComponent = item.getComponent(ItemComponent.class);
+        PipeShape shape = pipeSystem.getShape(blockComponent.getBlock());
+        PipeFollowingComponent pipeFollowingComponent = item.getComponent(PipeFollowingComponent.class);
+        if (itemComponent == null || shape == null) {
+            return null;
+        }
+        SegmentMeta meta = pathFollowerComponent.segmentMeta;
+        int segment = shape.indexOf(meta.prefab);
+        if (segment < 0) {
+            return null;
+        }
+        String name;
+        byte kind;
+        BlockItemComponent blockItemComponent = item.getComponent(BlockItemComponent.class);
+        if (blockItemComponent != null && blockItemComponent.blockFamily != null) {
+            name = blockItemComponent.blockFamily.getURI().toString();
+            kind = PipeTransitRecord.BLOCK;
+        } else {
+            Prefab prefab = item.getParentPrefab();
+            if (prefab == null) {
+                return null;
+            }
+            name = prefab.getUrn().toString();
+            kind = PipeTransitRecord.PREFAB;
+        }
+        if (!matchesDefaults(item, name, kind)) {
+            return null;
+        }
+        return new PipeTransitRecord(name, kind, itemComponent.stackCount, blockComponent.getPosition(), segment,
+                meta.position, pipeFollowingComponent.velocity, meta.sign);
+    }
+
+    /**
+     * @return true if recreating the item from its name and stack size gives back exactly the same components
+     */
+    private boolean matchesDefaults(EntityRef item, String name, byte kind) {
+        Map<Class<? extends Component>, Component> expected = getDefaults(name, kind);
+        if (expected.isEmpty()) {
+            return false;
+        }
+        int matched = 0;
+        for (Component component : item.iterateComponents()) {
+            if (RESTORED_COMPONENTS.contains(component.getClass())) {
+                continue;
+            }
+            Component reference = expected.get(component.getClass());
+            if (reference == null || !hasSameValues(component, reference)) {
+                return false;
+            }
+            matched++;
+        }
+        return matched == expected.size();
+    }
+
+    private boolean hasSameValues(Component component, Component reference) {
+        ComponentMetadata<? extends Component> metadata = entityManager.getComponentLibrary().getMetadata(component.getClass());
+        if (metadata == null) {
+            return false;
+        }
+        for (FieldMetadata<?, ?> field : metadata.getFields()) {
+            if (component instanceof ItemComponent && "stackCount".equals(field.getName())) {
+                continue;
+            }
+            if (!Objects.equals(field.getValue(component), field.getValue(reference))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the components of a freshly recreated item, built once per item name
+     */
+    private Map<Class<? extends Component>, Component> getDefaults(String name, byte kind) {
+        Map<Class<? extends Component>, Component> result = defaults.get(name);
+        if (result == null) {
+            result = Maps.newHashMap();
+            EntityRef reference = newItem(name, kind, 1);
+            if (reference.exists()) {
+                pipeSystem.prepareForPipe(reference, new Vector3f());
+                for (Component component : reference.iterateComponents()) {
+                    if (!RESTORED_COMPONENTS.contains(component.getClass())) {
+                        result.put(component.getClass(), entityManager.getComponentLibrary().copy(component));
+                    }
+                }
+            }
+            reference.destroy();
+            defaults.put(name, result);
+        }
+        return result;
+    }
+
+    private EntityRef newItem(String name, byte kind, int stackCount) {
+        if (kind == PipeTransitRecord.BLOCK) {
+            BlockFamily family = blockManager.getBlockFamily(name);
+            return family == null ? EntityRef.NULL : blockItemFactory.newInstance(family, stackCount);
+        }
+        EntityRef item = entityManager.create(name);
+        ItemComponent itemComponent = item.getComponent(ItemComponent.class);
+        if (itemComponent != null) {
+            itemComponent.stackCount = (byte) stackCount;
+            item.saveComponent(itemComponent);
+        }
+        return item;
+    }
+
+    private EntityRef createItem(PipeTransitRecord record) {
+        EntityRef item = newItem(record.getName(), record.getKind(), record.getStackCount());
+        store.remove(record);
+        if (!item.exists() || !item.hasComponent(ItemComponent.class)) {
+            logger.warn("Unable to restore in-pipe item {}", record.getName());
+            item.destroy();
+            return EntityRef.NULL;
+        }
+        pipeSystem.prepareForPipe(item, record.getPosition().toVector3f());
+        return item;
+    }
+
+    private void restore(PipeTransitRecord record, PipeNode node) {
+        PipeShape shape = pipeSystem.getShape(node.getBlock());
+        if (shape == null || record.getSegment() >= shape.getPathCount()) {
+            drop(record);
+            return;
+        }
+        EntityRef item = createItem(record);
+        if (!item.exists()) {
+            return;
+        }
+        PathFollowerComponent pathFollowerComponent = new PathFollowerComponent();
+        pathFollowerComponent.segmentMeta = new SegmentMeta(record.getDistance(), node.getEntity(), shape.getPath(record.getSegment()));
+        pathFollowerComponent.segmentMeta.sign = record.getSign();
+        PipeFollowingComponent pipeFollowingComponent = new PipeFollowingComponent();
+        pipeFollowingComponent.velocity = record.getVelocity();
+        item.addOrSaveComponent(pathFollowerComponent);
+        item.addComponent(pipeFollowingComponent);
+    }
+
+    /**
+     * Turns a record whose pipe is gone into a pickup where the pipe used to be.
+     */
+    private void drop(PipeTransitRecord record) {
+        EntityRef item = createItem(record);
+        if (item.exists()) {
+            pipeSystem.dropItem(item);
+        }
+    }
+}
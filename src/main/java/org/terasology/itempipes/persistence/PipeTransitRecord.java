@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.itempipes.persistence;
+
+import org.terasology.math.geom.Vector3i;
+
+/**
+ * The state of one in-pipe item in compact form: what the item is, where in which segment of which pipe block it is,
+ * and how it moves.
+ */
+public class PipeTransitRecord {
+    /**
+     * The item was created from a prefab, {@link #getName()} is the prefab.
+     */
+    public static final byte PREFAB = 0;
+    /**
+     * The item is a block item, {@link #getName()} is the block family.
+     */
+    public static final byte BLOCK = 1;
+
+    private final String name;
+    private final byte kind;
+    private final int stackCount;
+    private final Vector3i position;
+    private final int segment;
+    private final float distance;
+    private final float velocity;
+    private final int sign;
+    private int slot = -1;
+
+    public PipeTransitRecord(String name, byte kind, int stackCount, Vector3i position, int segment, float distance, float velocity, int sign) {
+        this.name = name;
+        this.kind = kind;
+        this.stackCount = stackCount;
+        this.position = new Vector3i(position);
+        this.segment = segment;
+        this.distance = distance;
+        this.velocity = velocity;
+        this.sign = sign;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public byte getKind() {
+        return kind;
+    }
+
+    public int getStackCount() {
+        return stackCount;
+    }
+
+    /**
+     * @return the position of the pipe block the item is in
+     */
+    public Vector3i getPosition() {
+        return position;
+    }
+
+    /**
+     * @return the index of the item's path in the pipe block's shape
+     */
+    public int getSegment() {
+        return segment;
+    }
+
+    public float getDistance() {
+        return distance;
+    }
+
+    public float getVelocity() {
+        return velocity;
+    }
+
+    public int getSign() {
+        return sign;
+    }
+
+    int getSlot() {
+        return slot;
+    }
+
+    void setSlot(int slot) {
+        this.slot = slot;
+    }
+}
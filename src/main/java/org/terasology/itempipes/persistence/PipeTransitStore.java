@@ -0,0 +1,253 @@
+/*
+ * Copyright 2017 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.itempipes.persistence;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import org.terasology.math.geom.Vector3i;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only store of fixed size transit records in a memory-mapped file. Item names are kept once each in a
+ * separate line based table next to it. Records are never moved while the store is open; restored records are only
+ * marked dead, and dead records are compacted into a fresh file the next time the store is opened.
+ * <p>
+ * Appends and removals only become visible in the file on {@link #commit()}. The owner calls {@link #mark()} when the
+ * world save takes its snapshot and commits once the save is written, so the file always matches the last world save.
+ * The header holds the committed record count, so anything written after the last commit is ignored when the store is
+ * opened after a crash.
+ */
+public class PipeTransitStore {
+    private static final int MAGIC = 0x50495045;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 32;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Path file;
+    private final Path namesFile;
+    private final List<String> names = Lists.newArrayList();
+    private final Map<String, Integer> nameIndex = Maps.newHashMap();
+    private final TIntList removed = new TIntArrayList();
+    private int markedCount;
+    private int markedRemovals;
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int count;
+    private int alive;
+
+    public PipeTransitStore(Path file) {
+        this.file = file;
+        this.namesFile = file.resolveSibling(file.getFileName() + ".names");
+    }
+
+    /**
+     * Opens the store, creating it if needed, and returns the records left in it.
+     */
+    public List<PipeTransitRecord> open() throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        if (Files.exists(namesFile)) {
+            for (String name : Files.readAllLines(namesFile, StandardCharsets.UTF_8)) {
+                nameIndex.put(name, names.size());
+                names.add(name);
+            }
+        }
+        List<PipeTransitRecord> records = Lists.newArrayList();
+        if (Files.exists(file)) {
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+            if (data.capacity() >= HEADER_SIZE && data.getInt(0) == MAGIC && data.getInt(4) == VERSION) {
+                int stored = Math.min(data.getInt(8), (data.capacity() - HEADER_SIZE) / RECORD_SIZE);
+                for (int slot = 0; slot < stored; slot++) {
+                    PipeTransitRecord record = read(data, slot);
+                    if (record != null) {
+                        records.add(record);
+                    }
+                }
+            }
+        }
+        compact(records);
+
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map(Math.max(INITIAL_CAPACITY, records.size() * 2));
+        count = records.size();
+        alive = count;
+        markedCount = count;
+        for (int slot = 0; slot < count; slot++) {
+            records.get(slot).setSlot(slot);
+        }
+        return records;
+    }
+
+    /**
+     * Writes only the live records to a new file and moves it over the old one, so a crash leaves either of them intact.
+     */
+    private void compact(List<PipeTransitRecord> records) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE + records.size() * RECORD_SIZE);
+        data.putInt(0, MAGIC);
+        data.putInt(4, VERSION);
+        data.putInt(8, records.size());
+        for (int slot = 0; slot < records.size(); slot++) {
+            write(data, slot, records.get(slot));
+        }
+        Path compacted = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (data.hasRemaining()) {
+                out.write(data);
+            }
+            out.force(true);
+        }
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public boolean isOpen() {
+        return channel != null;
+    }
+
+    public int getAliveCount() {
+        return alive;
+    }
+
+    public void append(PipeTransitRecord record) throws IOException {
+        if (count == capacity) {
+            map(capacity * 2);
+        }
+        write(buffer, count, record);
+        record.setSlot(count);
+        count++;
+        alive++;
+    }
+
+    /**
+     * Marks a record as restored. The record stays in the file until the next {@link #commit()}.
+     */
+    public void remove(PipeTransitRecord record) {
+        int slot = record.getSlot();
+        if (slot < 0 || slot >= count) {
+            return;
+        }
+        removed.add(slot);
+        record.setSlot(-1);
+        alive--;
+    }
+
+    /**
+     * Remembers the current appends and removals as the ones the next {@link #commit()} makes durable.
+     */
+    public void mark() {
+        markedCount = count;
+        markedRemovals = removed.size();
+    }
+
+    /**
+     * Makes the appends and removals up to the last {@link #mark()} durable. Once no record is left the file is reset,
+     * so it does not grow across sessions.
+     */
+    public void commit() {
+        if (buffer == null) {
+            return;
+        }
+        for (int i = 0; i < markedRemovals; i++) {
+            buffer.put(HEADER_SIZE + removed.get(i) * RECORD_SIZE + 28, (byte) 0);
+        }
+        removed.remove(0, markedRemovals);
+        markedRemovals = 0;
+        if (alive == 0 && count == markedCount && removed.isEmpty()) {
+            count = 0;
+            markedCount = 0;
+        }
+        buffer.force();
+        buffer.putInt(8, markedCount);
+        buffer.force();
+    }
+
+    /**
+     * Closes the store without committing, changes since the last commit are discarded.
+     */
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+            buffer = null;
+        }
+    }
+
+    public List<String> getNames() {
+        return Collections.unmodifiableList(names);
+    }
+
+    private void write(ByteBuffer data, int slot, PipeTransitRecord record) throws IOException {
+        int offset = HEADER_SIZE + slot * RECORD_SIZE;
+        data.putInt(offset, indexOf(record.getName()));
+        data.put(offset + 4, record.getKind());
+        data.put(offset + 5, (byte) record.getStackCount());
+        data.put(offset + 6, (byte) record.getSign());
+        data.put(offset + 7, (byte) record.getSegment());
+        data.putInt(offset + 8, record.getPosition().x);
+        data.putInt(offset + 12, record.getPosition().y);
+        data.putInt(offset + 16, record.getPosition().z);
+        data.putFloat(offset + 20, record.getDistance());
+        data.putFloat(offset + 24, record.getVelocity());
+        data.put(offset + 28, (byte) 1);
+    }
+
+    private PipeTransitRecord read(ByteBuffer data, int slot) {
+        int offset = HEADER_SIZE + slot * RECORD_SIZE;
+        if (data.get(offset + 28) == 0) {
+            return null;
+        }
+        int name = data.getInt(offset);
+        if (name < 0 || name >= names.size()) {
+            return null;
+        }
+        Vector3i position = new Vector3i(data.getInt(offset + 8), data.getInt(offset + 12), data.getInt(offset + 16));
+        return new PipeTransitRecord(names.get(name), data.get(offset + 4), data.get(offset + 5) & 0xFF, position,
+                data.get(offset + 7), data.getFloat(offset + 20), data.getFloat(offset + 24), data.get(offset + 6));
+    }
+
+    private int indexOf(String name) throws IOException {
+        Integer index = nameIndex.get(name);
+        if (index == null) {
+            index = names.size();
+            names.add(name);
+            nameIndex.put(name, index);
+            Files.write(namesFile, Collections.singletonList(name), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        return index;
+    }
+
+    private void map(int capacity) throws IOException {
+        this.capacity = capacity;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+    }
+}